@@ -28,6 +28,13 @@ public class CSVBeanReader implements Iterable<Object> {
     private int skipRowNum;
 
     private BufferedReader reader;
+
+    /** the csv file and its charset, null if read from a stream */
+    private File file;
+    private String charsetName;
+
+    /** the cache of parsed csv files, null if not cached */
+    private CSVCache cache;
     private Iterator<Object> iterator;
 
     /** An map used to transform headers to field names of bean.
@@ -44,6 +51,8 @@ public class CSVBeanReader implements Iterable<Object> {
     }
 
     public CSVBeanReader(File file, String charsetName) {
+        this.file = file;
+        this.charsetName = charsetName;
         try {
             InputStream is = new FileInputStream(file);
             reader = new BufferedReader(new InputStreamReader(is, charsetName));
@@ -73,6 +82,19 @@ public class CSVBeanReader implements Iterable<Object> {
         return this;
     }
 
+    public CSVCache cache() {
+        return cache;
+    }
+
+    /**
+     * Read the rows through the {@code cache}, only works when the csv is read from a file.
+     * The rows of an unchanged file are loaded from the cache file at the next time.
+     */
+    public CSVBeanReader cache(CSVCache c) {
+        cache = c;
+        return this;
+    }
+
     public List<String> headers() {
         return headers;
     }
@@ -135,8 +157,8 @@ public class CSVBeanReader implements Iterable<Object> {
     }
 
     private class BeanReader extends Reader<Object> {
-        /** read one line in advance for judging whether has next line*/
-        private String nextLine;
+        /** read one row in advance for judging whether has next row */
+        private String[] nextRow;
 
         /** the number of the line that be handled */
         private int lineno;
@@ -149,28 +171,26 @@ public class CSVBeanReader implements Iterable<Object> {
 
             try {
                 /* skip the first skipRowNum line */
-                for (int i = 0; i < skipRowNum; i++) {
-                    if (readLine() == null)
-                        break;
-                }
+                open(reader, skipRowNum, cache, file, charsetName);
+                lineno = skipped();
 
                 /* if does not provide headers, read one line as headers */
                 if (headers == null) {
-                    String line = readLine();
-                    if (line == null)
+                    String[] row = nextRow();
+                    if (row == null)
                         throw new CSVException("Cannot read headers, file may be empty.");
 
-                    headers = Arrays.asList(split(line));
+                    headers = Arrays.asList(row);
                 }
 
-                nextLine = readLine();
+                nextRow = nextRow();
             } catch (IOException e) {
                 throw new IOError(e.getMessage());
             }
         }
 
-        private String readLine() throws IOException {
-            String ret = reader.readLine();
+        private String[] nextRow() throws IOException {
+            String[] ret = readRow();
             if (ret != null)
                 lineno++;
             return ret;
@@ -178,15 +198,15 @@ public class CSVBeanReader implements Iterable<Object> {
 
         @Override
         public boolean hasNext() {
-            return nextLine != null;
+            return nextRow != null;
         }
 
         @Override
         public Object next() {
-            if (nextLine == null)
+            if (nextRow == null)
                 throw new NoSuchElementException();
 
-            String[] items = split(nextLine);
+            String[] items = nextRow;
             if (items.length != headers.size()) {
                 throw new CSVException(
                         String.format("Invalid csv format in line %d", lineno)
@@ -264,7 +284,7 @@ public class CSVBeanReader implements Iterable<Object> {
             }
 
             try {
-                nextLine = readLine();
+                nextRow = nextRow();
             } catch (IOException e) {
                 throw new IOError(e.getMessage());
             }
@@ -0,0 +1,299 @@
+package xyz.jiel.csv;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * An opt-in cache of parsed csv files, shared by {@code CSVReader}, {@code CSVMapReader} and
+ * {@code CSVBeanReader}. The first read of a csv file writes its split rows into a compact binary
+ * file in the cache directory, keyed by the path, size and last modified time of the csv and the
+ * config of the reader. Later reads memory-map the cache file and skip splitting and decoding the
+ * csv entirely.
+ *
+ * <p>When the total size of the cache files exceeds {@code maxBytes}, the least recently used
+ * files are evicted. A cache directory can be shared by many processes, the cache files are
+ * written to temporary files and renamed into place.
+ *
+ * <p>The cache is only an optimization, if a cache file cannot be written or read, e.g. the cache
+ * directory is full or the file is evicted by another process, the csv is read without the cache.
+ */
+public class CSVCache {
+    private static final int MAGIC = 0x43535643;
+    private static final int VERSION = 2;
+    private static final String SUFFIX = ".csvc";
+
+    /** the size of the region of a cache file that be mapped at once */
+    private static final long WINDOW = 1L << 28;
+
+    private File dir;
+    private long maxBytes;
+
+    public CSVCache(File dir) {
+        this(dir, 4L << 30);
+    }
+
+    public CSVCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    public CSVCache(String dir) {
+        this(new File(dir));
+    }
+
+    public CSVCache(String dir, long maxBytes) {
+        this(new File(dir), maxBytes);
+    }
+
+    public File dir() {
+        return dir;
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Get the rows of the csv {@code file} after skipping {@code skipRowNum} lines. If there is no
+     * valid cache file, the rows are read from {@code reader}, split by {@code parser} and written
+     * to a new cache file at first. The {@code reader} is always closed.
+     *
+     * @param reader the opened reader of the {@code file}.
+     * @param file the csv file.
+     * @param charsetName the charset of the {@code file}.
+     * @param parser the parser which splits the lines, its config is a part of the key.
+     * @param skipRowNum the number of the lines that be skipped.
+     * @return the source of the cached rows.
+     * @throws IOException if the cache file cannot be written or read, the {@code file} should be
+     * read without the cache.
+     */
+    RowSource rows(BufferedReader reader, File file, String charsetName,
+                   Reader<?> parser, int skipRowNum) throws IOException {
+        try {
+            String key = String.format("%s\n%d\n%d\n%s\n%s\n%d",
+                    file.getCanonicalPath(), file.length(), file.lastModified(),
+                    charsetName, parser.config(), skipRowNum);
+            File cached = new File(dir, hex(key) + SUFFIX);
+
+            MappedRows rows = open(cached, key);
+            if (rows != null) {
+                /* touch the cache file, the least recently used files are evicted at first */
+                cached.setLastModified(System.currentTimeMillis());
+                return rows;
+            }
+
+            build(reader, cached, key, parser, skipRowNum);
+            evict(cached);
+            rows = open(cached, key);
+            if (rows == null)
+                throw new IOException(String.format("Cache file is evicted: %s", cached.getPath()));
+            return rows;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Open the cache file {@code cached}, and check its header.
+     *
+     * @return the rows of the cache file, or null if {@code cached} does not exist or is not
+     * written for the {@code key}.
+     */
+    private static MappedRows open(File cached, String key) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(cached.toPath(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        boolean valid = false;
+        try {
+            byte[] expected = header(key);
+            ByteBuffer buf = ByteBuffer.allocate(expected.length + 4);
+            while (buf.hasRemaining() && channel.read(buf) != -1) {
+                // read the whole header
+            }
+            buf.flip();
+            if (buf.remaining() < expected.length + 4)
+                return null;
+
+            byte[] actual = new byte[expected.length];
+            buf.get(actual);
+            if (!Arrays.equals(expected, actual))
+                return null;
+
+            valid = true;
+            return new MappedRows(channel, buf.limit(), buf.getInt());
+        } finally {
+            if (!valid)
+                channel.close();
+        }
+    }
+
+    private static byte[] header(String key) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(key);
+        return bytes.toByteArray();
+    }
+
+    private void build(BufferedReader reader, File cached, String key,
+                       Reader<?> parser, int skipRowNum) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException(String.format("Cannot create cache directory: %s", dir.getPath()));
+
+        File tmp = File.createTempFile(cached.getName(), ".tmp", dir);
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+                out.write(header(key));
+
+                /* the number of the skipped lines follows the header */
+                int skipped = 0;
+                while (skipped < skipRowNum && reader.readLine() != null)
+                    skipped++;
+                out.writeInt(skipped);
+
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    RowFormat.write(out, parser.split(line));
+                }
+            }
+
+            try {
+                Files.move(tmp.toPath(), cached.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Delete the least recently used cache files until the total size is not greater than
+     * {@code maxBytes}. The {@code keep} file is never deleted.
+     */
+    private void evict(File keep) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        if (files == null)
+            return;
+
+        final Map<File, Long> used = new HashMap<>();
+        long total = 0;
+        for (File f : files) {
+            used.put(f, f.lastModified());
+            total += f.length();
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(used.get(a), used.get(b));
+            }
+        });
+
+        for (File f : files) {
+            if (total <= maxBytes)
+                break;
+            if (f.equals(keep))
+                continue;
+            long len = f.length();
+            if (f.delete())
+                total -= len;
+        }
+    }
+
+    private static String hex(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1")
+                    .digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder builder = new StringBuilder();
+            for (byte b : digest)
+                builder.append(String.format("%02x", b));
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+
+    /**
+     * Read the rows of a cache file by mapping a window of it at once. A row never
+     * straddles two windows, the window is moved to the start of the row instead.
+     */
+    private static class MappedRows implements RowSource {
+        private FileChannel channel;
+        private RowFormat format = new RowFormat();
+        private long size;
+
+        /** the offset in the file of the next row */
+        private long position;
+
+        private MappedByteBuffer window;
+
+        /** the offset in the file of the window */
+        private long base;
+
+        private int skipped;
+
+        MappedRows(FileChannel channel, int headerLength, int skipped) throws IOException {
+            this.channel = channel;
+            this.skipped = skipped;
+            size = channel.size();
+            position = headerLength;
+        }
+
+        @Override
+        public int skipped() {
+            return skipped;
+        }
+
+        @Override
+        public String[] next() throws IOException {
+            if (position >= size)
+                return null;
+
+            map(4);
+            int recordSize = window.getInt((int) (position - base));
+            if (recordSize + 4L > WINDOW)
+                throw new CSVException(String.format("Too large row in cache file at %d", position));
+            map(recordSize + 4);
+
+            window.position((int) (position - base) + 4);
+            String[] row = format.read(window);
+            position += recordSize + 4;
+            return row;
+        }
+
+        /** Make sure the next {@code n} bytes are in the window. */
+        private void map(int n) throws IOException {
+            if (window != null && position + n <= base + window.limit())
+                return;
+            base = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(WINDOW, size - base));
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
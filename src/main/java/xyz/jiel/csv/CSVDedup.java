@@ -0,0 +1,250 @@
+package xyz.jiel.csv;
+
+import xyz.jiel.exceptions.IOError;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Remove the duplicated rows of a csv source, support foreach loop, return an {@code String} array
+ * in each loop. Two rows are duplicated if their {@code keys} are equal, only the first one of them
+ * is returned. If the {@code keys} is not provided, all the fields are the keys.
+ *
+ * <p>An array of header used to find the keys, if does not provided, read the first row of the
+ * source as headers. The keys of the returned rows are kept in a compact index in memory. If the
+ * index exceeds {@code memoryLimit}, the seen keys and the rest rows of the source are partitioned
+ * into files in {@code spillDir} by the hash of the keys, then each partition is deduplicated in
+ * turn. So the rows after the spilling are returned partition by partition, not in the order of
+ * the source. The files are deleted when the iteration ends or fails, an iteration which stops
+ * before the end should call {@code close()}.
+ */
+public class CSVDedup implements Iterable<String[]>, Closeable {
+    private Iterable<String[]> source;
+    private List<String> headers;
+    private List<String> keys;
+
+    private long memoryLimit = 256L << 20;
+    private File spillDir = new File(System.getProperty("java.io.tmpdir"));
+    private int partitions = 64;
+
+    private Iterator<String[]> iterator;
+
+    public CSVDedup(Iterable<String[]> source) {
+        this.source = source;
+    }
+
+    public List<String> headers() {
+        return headers;
+    }
+
+    public CSVDedup headers(List<String> h) {
+        headers = h;
+        return this;
+    }
+
+    public List<String> keys() {
+        return keys;
+    }
+
+    public CSVDedup keys(List<String> k) {
+        keys = k;
+        return this;
+    }
+
+    public long memoryLimit() {
+        return memoryLimit;
+    }
+
+    /** Set the number of bytes of the index of the seen keys, before spilling to disk. */
+    public CSVDedup memoryLimit(long bytes) {
+        memoryLimit = bytes;
+        return this;
+    }
+
+    public File spillDir() {
+        return spillDir;
+    }
+
+    public CSVDedup spillDir(File dir) {
+        spillDir = dir;
+        return this;
+    }
+
+    public int partitions() {
+        return partitions;
+    }
+
+    public CSVDedup partitions(int n) {
+        partitions = n;
+        return this;
+    }
+
+    @Override
+    public Iterator<String[]> iterator() {
+        if (iterator == null)
+            iterator = new DedupReader();
+        return iterator;
+    }
+
+    /**
+     * Delete the spilled files of an iteration which stops before the end.
+     */
+    @Override
+    public void close() {
+        if (iterator != null)
+            ((DedupReader) iterator).close();
+    }
+
+    private class DedupReader implements Iterator<String[]> {
+        private Iterator<String[]> rows;
+        private int width;
+        private int[] keyCols;
+
+        /** the seen keys, each stored row only contains the keys */
+        private RowIndex seen;
+        private int[] seenCols;
+
+        /** the partitions, null if the seen keys fit in memory */
+        private Spill seenSpill;
+        private Spill rowSpill;
+        private int partition = -1;
+
+        private String[] nextRow;
+
+        DedupReader() {
+            rows = source.iterator();
+            if (headers == null)
+                headers = CSVJoin.readHeaders(rows);
+            width = headers.size();
+
+            if (keys == null) {
+                keyCols = new int[width];
+                for (int i = 0; i < width; i++)
+                    keyCols[i] = i;
+            } else {
+                keyCols = CSVJoin.columns(headers, keys);
+            }
+
+            seenCols = new int[keyCols.length];
+            for (int i = 0; i < seenCols.length; i++)
+                seenCols[i] = i;
+            seen = new RowIndex(seenCols);
+
+            nextRow = advance();
+        }
+
+        private String[] advance() {
+            try {
+                while (true) {
+                    if (rows != null && rows.hasNext()) {
+                        String[] row = rows.next();
+                        CSVJoin.checkRow(row, width, "dedup");
+
+                        int hash = RowIndex.hash(row, keyCols);
+                        if (seen.first(row, keyCols, hash) != -1)
+                            continue;
+
+                        String[] key = new String[keyCols.length];
+                        for (int i = 0; i < key.length; i++)
+                            key[i] = row[keyCols[i]];
+                        if (rowSpill == null && (seen.bytes() > memoryLimit || seen.full(key))) {
+                            spill(row);
+                            continue;
+                        }
+                        if (seen.full(key)) {
+                            throw new CSVException(String.format(
+                                    "The partition %d of the source cannot be loaded, the keys may be skewed, "
+                                            + "try more partitions", partition));
+                        }
+                        seen.add(key, hash);
+                        return row;
+                    } else if (rowSpill == null || !nextPartition()) {
+                        close();
+                        return null;
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw new IOError(e.getMessage());
+            } catch (RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * Partition the seen keys, the {@code row}, and the rest rows of the source.
+         */
+        private void spill(String[] row) throws IOException {
+            seenSpill = new Spill(spillDir, "seen", partitions);
+            rowSpill = new Spill(spillDir, "dedup", partitions);
+
+            for (int id = 0; id < seen.size(); id++) {
+                String[] key = seen.row(id);
+                seenSpill.write(key, RowIndex.hash(key, seenCols));
+            }
+            seen = null;
+
+            rowSpill.write(row, RowIndex.hash(row, keyCols));
+            while (rows.hasNext()) {
+                row = rows.next();
+                CSVJoin.checkRow(row, width, "dedup");
+                rowSpill.write(row, RowIndex.hash(row, keyCols));
+            }
+            rows = null;
+
+            seenSpill.finish();
+            rowSpill.finish();
+        }
+
+        /**
+         * Load the seen keys of the next partition, and read its rows.
+         *
+         * @return false if there are no more partitions.
+         */
+        private boolean nextPartition() throws IOException {
+            if (++partition >= rowSpill.partitions())
+                return false;
+
+            /* a partition is always loaded, even if it exceeds memoryLimit */
+            seen = new RowIndex(seenCols);
+            Iterator<String[]> seenKeys = seenSpill.rows(partition);
+            while (seenKeys.hasNext()) {
+                String[] key = seenKeys.next();
+                seen.add(key, RowIndex.hash(key, seenCols));
+            }
+            rows = rowSpill.rows(partition);
+            return true;
+        }
+
+        /** Delete the spilled files. */
+        void close() {
+            if (seenSpill != null)
+                seenSpill.delete();
+            if (rowSpill != null)
+                rowSpill.delete();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextRow != null;
+        }
+
+        @Override
+        public String[] next() {
+            if (nextRow == null)
+                throw new NoSuchElementException();
+
+            String[] ret = nextRow;
+            nextRow = advance();
+            return ret;
+        }
+
+        @Override
+        public void remove() {
+
+        }
+    }
+}
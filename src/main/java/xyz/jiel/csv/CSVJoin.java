@@ -0,0 +1,369 @@
+package xyz.jiel.csv;
+
+import xyz.jiel.exceptions.IOError;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A streaming hash join of two csv sources, support foreach loop, return an {@code String} array
+ * in each loop. The rows of the smaller {@code build} source are loaded into a compact index,
+ * then the rows of the larger {@code probe} source are read one by one, and each pair of rows
+ * whose keys are equal is joined. A joined row contains the fields of the probe row, followed by
+ * the fields of the build row except the keys. Only the pairs of rows which match are returned.
+ *
+ * <p>An array of header of each source used to find the keys, if does not provided, read the first
+ * row of the source as headers. If the index of the build source exceeds {@code memoryLimit},
+ * the rows of both sources are partitioned into files in {@code spillDir} by the hash of the keys,
+ * then each pair of partitions is joined in turn. The files are deleted when the iteration ends or
+ * fails, an iteration which stops before the end should call {@code close()}.
+ *
+ * <pre>
+ * CSVJoin join = new CSVJoin(new CSVReader("users.csv"), new CSVReader("orders.csv"))
+ *         .keys(Arrays.asList("user_id"));
+ * for (String[] row : join) { ... }
+ * </pre>
+ */
+public class CSVJoin implements Iterable<String[]>, Closeable {
+    private Iterable<String[]> build;
+    private Iterable<String[]> probe;
+
+    private List<String> buildHeaders;
+    private List<String> probeHeaders;
+    private List<String> buildKeys;
+    private List<String> probeKeys;
+
+    /** the headers of the joined rows, known after the iterator is created */
+    private List<String> headers;
+
+    private long memoryLimit = 256L << 20;
+    private File spillDir = new File(System.getProperty("java.io.tmpdir"));
+    private int partitions = 64;
+
+    private Iterator<String[]> iterator;
+
+    public CSVJoin(Iterable<String[]> build, Iterable<String[]> probe) {
+        this.build = build;
+        this.probe = probe;
+    }
+
+    public List<String> buildHeaders() {
+        return buildHeaders;
+    }
+
+    public CSVJoin buildHeaders(List<String> h) {
+        buildHeaders = h;
+        return this;
+    }
+
+    public List<String> probeHeaders() {
+        return probeHeaders;
+    }
+
+    public CSVJoin probeHeaders(List<String> h) {
+        probeHeaders = h;
+        return this;
+    }
+
+    /** Set the keys, which have the same names in both sources. */
+    public CSVJoin keys(List<String> k) {
+        buildKeys = k;
+        probeKeys = k;
+        return this;
+    }
+
+    public List<String> buildKeys() {
+        return buildKeys;
+    }
+
+    public CSVJoin buildKeys(List<String> k) {
+        buildKeys = k;
+        return this;
+    }
+
+    public List<String> probeKeys() {
+        return probeKeys;
+    }
+
+    public CSVJoin probeKeys(List<String> k) {
+        probeKeys = k;
+        return this;
+    }
+
+    public long memoryLimit() {
+        return memoryLimit;
+    }
+
+    /** Set the number of bytes of the index of the build source, before spilling to disk. */
+    public CSVJoin memoryLimit(long bytes) {
+        memoryLimit = bytes;
+        return this;
+    }
+
+    public File spillDir() {
+        return spillDir;
+    }
+
+    public CSVJoin spillDir(File dir) {
+        spillDir = dir;
+        return this;
+    }
+
+    public int partitions() {
+        return partitions;
+    }
+
+    public CSVJoin partitions(int n) {
+        partitions = n;
+        return this;
+    }
+
+    /**
+     * Get the headers of the joined rows, the headers of the probe source followed by the
+     * headers of the build source except the keys.
+     *
+     * @return the headers, or null if the iteration has not begun.
+     */
+    public List<String> headers() {
+        return headers;
+    }
+
+    @Override
+    public Iterator<String[]> iterator() {
+        if (iterator == null)
+            iterator = new JoinReader();
+        return iterator;
+    }
+
+    /**
+     * Delete the spilled files of an iteration which stops before the end.
+     */
+    @Override
+    public void close() {
+        if (iterator != null)
+            ((JoinReader) iterator).close();
+    }
+
+    /**
+     * Read the first row of {@code rows} as headers.
+     */
+    static List<String> readHeaders(Iterator<String[]> rows) {
+        if (!rows.hasNext())
+            throw new CSVException("Cannot read headers, file may be empty.");
+        return Arrays.asList(rows.next());
+    }
+
+    /**
+     * Get the indexes of the {@code keys} in the {@code headers}.
+     */
+    static int[] columns(List<String> headers, List<String> keys) {
+        int[] cols = new int[keys.size()];
+        for (int i = 0; i < cols.length; i++) {
+            cols[i] = headers.indexOf(keys.get(i));
+            if (cols[i] == -1)
+                throw new CSVException(String.format("Cannot find key %s in headers %s", keys.get(i), headers));
+        }
+        return cols;
+    }
+
+    static void checkRow(String[] row, int width, String source) {
+        if (row.length != width) {
+            throw new CSVException(String.format(
+                    "Invalid csv format in %s source, expect %d fields but %d", source, width, row.length));
+        }
+    }
+
+    private class JoinReader implements Iterator<String[]> {
+        private int buildWidth;
+        private int probeWidth;
+        private int[] buildKeyCols;
+        private int[] probeKeyCols;
+
+        /** the columns of the build rows that be appended to the probe rows */
+        private int[] valueCols;
+
+        private RowIndex index;
+        private Iterator<String[]> probeRows;
+
+        /** the probe row being joined, and the id of its next matched build row */
+        private String[] probeRow;
+        private int probeHash;
+        private int match = -1;
+
+        /** the partitions, null if the build source fits in memory */
+        private Spill buildSpill;
+        private Spill probeSpill;
+        private int partition = -1;
+
+        private String[] nextRow;
+
+        JoinReader() {
+            if (buildKeys == null || probeKeys == null || buildKeys.size() != probeKeys.size())
+                throw new CSVException("You should set the keys by keys(List) at first");
+
+            Iterator<String[]> buildIt = build.iterator();
+            Iterator<String[]> probeIt = probe.iterator();
+            List<String> bh = buildHeaders != null ? buildHeaders : readHeaders(buildIt);
+            List<String> ph = probeHeaders != null ? probeHeaders : readHeaders(probeIt);
+            buildWidth = bh.size();
+            probeWidth = ph.size();
+            buildKeyCols = columns(bh, buildKeys);
+            probeKeyCols = columns(ph, probeKeys);
+
+            List<String> h = new ArrayList<>(ph);
+            List<Integer> values = new ArrayList<>();
+            for (int i = 0; i < buildWidth; i++) {
+                if (!buildKeys.contains(bh.get(i))) {
+                    values.add(i);
+                    h.add(bh.get(i));
+                }
+            }
+            valueCols = new int[values.size()];
+            for (int i = 0; i < valueCols.length; i++)
+                valueCols[i] = values.get(i);
+            headers = h;
+
+            index = new RowIndex(buildKeyCols);
+            while (buildIt.hasNext()) {
+                String[] row = buildIt.next();
+                checkRow(row, buildWidth, "build");
+                if (index.bytes() > memoryLimit || index.full(row)) {
+                    spill(row, buildIt, probeIt);
+                    break;
+                }
+                index.add(row, RowIndex.hash(row, buildKeyCols));
+            }
+            if (buildSpill == null)
+                probeRows = probeIt;
+
+            nextRow = advance();
+        }
+
+        /**
+         * Partition the rows in the index, the {@code row}, and the rest rows of both sources.
+         */
+        private void spill(String[] row, Iterator<String[]> buildIt, Iterator<String[]> probeIt) {
+            try {
+                buildSpill = new Spill(spillDir, "build", partitions);
+                probeSpill = new Spill(spillDir, "probe", partitions);
+
+                for (int id = 0; id < index.size(); id++)
+                    write(buildSpill, index.row(id), buildKeyCols);
+                index = null;
+
+                write(buildSpill, row, buildKeyCols);
+                while (buildIt.hasNext()) {
+                    row = buildIt.next();
+                    checkRow(row, buildWidth, "build");
+                    write(buildSpill, row, buildKeyCols);
+                }
+                while (probeIt.hasNext()) {
+                    row = probeIt.next();
+                    checkRow(row, probeWidth, "probe");
+                    write(probeSpill, row, probeKeyCols);
+                }
+
+                buildSpill.finish();
+                probeSpill.finish();
+            } catch (IOException e) {
+                close();
+                throw new IOError(e.getMessage());
+            } catch (RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        private void write(Spill spill, String[] row, int[] cols) throws IOException {
+            spill.write(row, RowIndex.hash(row, cols));
+        }
+
+        /**
+         * Load the next pair of partitions.
+         *
+         * @return false if there are no more partitions.
+         */
+        private boolean nextPartition() throws IOException {
+            if (++partition >= buildSpill.partitions())
+                return false;
+
+            /* a partition is always loaded, even if it exceeds memoryLimit */
+            index = new RowIndex(buildKeyCols);
+            Iterator<String[]> rows = buildSpill.rows(partition);
+            while (rows.hasNext()) {
+                String[] row = rows.next();
+                if (index.full(row)) {
+                    throw new CSVException(String.format(
+                            "The partition %d of the build source cannot be loaded, the keys may be skewed, "
+                                    + "try more partitions", partition));
+                }
+                index.add(row, RowIndex.hash(row, buildKeyCols));
+            }
+            probeRows = probeSpill.rows(partition);
+            return true;
+        }
+
+        private String[] advance() {
+            try {
+                while (true) {
+                    if (match != -1) {
+                        String[] ret = join(probeRow, index.row(match));
+                        match = index.next(match, probeRow, probeKeyCols, probeHash);
+                        return ret;
+                    }
+
+                    if (probeRows != null && probeRows.hasNext()) {
+                        probeRow = probeRows.next();
+                        checkRow(probeRow, probeWidth, "probe");
+                        probeHash = RowIndex.hash(probeRow, probeKeyCols);
+                        match = index.first(probeRow, probeKeyCols, probeHash);
+                    } else if (buildSpill == null || !nextPartition()) {
+                        close();
+                        return null;
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw new IOError(e.getMessage());
+            } catch (RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /** Delete the spilled files. */
+        void close() {
+            if (buildSpill != null)
+                buildSpill.delete();
+            if (probeSpill != null)
+                probeSpill.delete();
+        }
+
+        private String[] join(String[] probeRow, String[] buildRow) {
+            String[] ret = Arrays.copyOf(probeRow, probeRow.length + valueCols.length);
+            for (int i = 0; i < valueCols.length; i++)
+                ret[probeRow.length + i] = buildRow[valueCols[i]];
+            return ret;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextRow != null;
+        }
+
+        @Override
+        public String[] next() {
+            if (nextRow == null)
+                throw new NoSuchElementException();
+
+            String[] ret = nextRow;
+            nextRow = advance();
+            return ret;
+        }
+
+        @Override
+        public void remove() {
+
+        }
+    }
+}
@@ -23,6 +23,13 @@ public class CSVMapReader implements Iterable<Map<String, String>> {
     private int skipRowNum = 0;
 
     private BufferedReader reader;
+
+    /** the csv file and its charset, null if read from a stream */
+    private File file;
+    private String charsetName;
+
+    /** the cache of parsed csv files, null if not cached */
+    private CSVCache cache;
     private Iterator<Map<String, String>> iterator;
 
     public CSVMapReader(InputStream is) {
@@ -34,6 +41,8 @@ public class CSVMapReader implements Iterable<Map<String, String>> {
     }
 
     public CSVMapReader(File file, String charsetName) {
+        this.file = file;
+        this.charsetName = charsetName;
         try {
             InputStream is = new FileInputStream(file);
             reader = new BufferedReader(new InputStreamReader(is, charsetName));
@@ -63,6 +72,19 @@ public class CSVMapReader implements Iterable<Map<String, String>> {
         return this;
     }
 
+    public CSVCache cache() {
+        return cache;
+    }
+
+    /**
+     * Read the rows through the {@code cache}, only works when the csv is read from a file.
+     * The rows of an unchanged file are loaded from the cache file at the next time.
+     */
+    public CSVMapReader cache(CSVCache c) {
+        cache = c;
+        return this;
+    }
+
     public List<String> headers() {
         return headers;
     }
@@ -107,8 +129,8 @@ public class CSVMapReader implements Iterable<Map<String, String>> {
     }
 
     private class MapReader extends Reader<Map<String, String>> {
-        /** read one line in advance for judging whether has next line*/
-        private String nextLine;
+        /** read one row in advance for judging whether has next row */
+        private String[] nextRow;
 
         /** the number of the line that be handled */
         private int lineno;
@@ -117,28 +139,26 @@ public class CSVMapReader implements Iterable<Map<String, String>> {
             super(CSVMapReader.this.delimiter, CSVMapReader.this.quoteChar, CSVMapReader.this.escapeChar);
             try {
                 /* skip the first skipRowNum line */
-                for (int i = 0; i < skipRowNum; i++) {
-                    if (readLine() == null)
-                        break;
-                }
+                open(reader, skipRowNum, cache, file, charsetName);
+                lineno = skipped();
 
                 /* if does not provide headers, read one line as headers */
                 if (headers == null) {
-                    String line = readLine();
-                    if (line == null)
+                    String[] row = nextRow();
+                    if (row == null)
                         throw new CSVException("Cannot read headers, file may be empty.");
 
-                    headers = Arrays.asList(split(line));
+                    headers = Arrays.asList(row);
                 }
 
-                nextLine = readLine();
+                nextRow = nextRow();
             } catch (IOException e) {
                 throw new IOError(e.getMessage());
             }
         }
 
-        private String readLine() throws IOException {
-            String ret = reader.readLine();
+        private String[] nextRow() throws IOException {
+            String[] ret = readRow();
             if (ret != null)
                 lineno++;
             return ret;
@@ -146,15 +166,15 @@ public class CSVMapReader implements Iterable<Map<String, String>> {
 
         @Override
         public boolean hasNext() {
-            return nextLine != null;
+            return nextRow != null;
         }
 
         @Override
         public Map<String, String> next() {
-            if (nextLine == null)
+            if (nextRow == null)
                 throw new NoSuchElementException();
 
-            String[] items = split(nextLine);
+            String[] items = nextRow;
             if (items.length != headers.size()) {
                 throw new CSVException(
                         String.format("Invalid csv format in line %d", lineno)
@@ -167,7 +187,7 @@ public class CSVMapReader implements Iterable<Map<String, String>> {
             }
 
             try {
-                nextLine = readLine();
+                nextRow = nextRow();
             } catch (IOException e) {
                 throw new IOError(e.getMessage());
             }
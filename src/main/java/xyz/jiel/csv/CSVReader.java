@@ -20,6 +20,13 @@ public class CSVReader implements Iterable<String[]> {
     private int skipRowNum = 0;
 
     private BufferedReader reader;
+
+    /** the csv file and its charset, null if read from a stream */
+    private File file;
+    private String charsetName;
+
+    /** the cache of parsed csv files, null if not cached */
+    private CSVCache cache;
     private Iterator<String[]> iterator;
 
     public CSVReader(InputStream is) {
@@ -31,6 +38,8 @@ public class CSVReader implements Iterable<String[]> {
     }
 
     public CSVReader(File file, String charsetName) {
+        this.file = file;
+        this.charsetName = charsetName;
         try {
             InputStream is = new FileInputStream(file);
             reader = new BufferedReader(new InputStreamReader(is, charsetName));
@@ -71,6 +80,19 @@ public class CSVReader implements Iterable<String[]> {
         return this;
     }
 
+    public CSVCache cache() {
+        return cache;
+    }
+
+    /**
+     * Read the rows through the {@code cache}, only works when the csv is read from a file.
+     * The rows of an unchanged file are loaded from the cache file at the next time.
+     */
+    public CSVReader cache(CSVCache c) {
+        cache = c;
+        return this;
+    }
+
     @Override
     public Iterator<String[]> iterator() {
         if (iterator == null)
@@ -79,19 +101,15 @@ public class CSVReader implements Iterable<String[]> {
     }
 
     private class ArrayReader extends Reader<String[]> {
-        private String nextLine;
+        /* read one row in advance for judging whether has next row */
+        private String[] nextRow;
 
         ArrayReader() {
             super(CSVReader.this.delimiter, CSVReader.this.quoteStr, CSVReader.this.escapeStr);
             try {
                 /* skip the first skipRowNum line */
-                for (int i = 0; i < skipRowNum; i++) {
-                    if (reader.readLine() == null) {
-                        break;
-                    }
-                }
-                /* read one line in advance for judging whether has next line*/
-                nextLine = reader.readLine();
+                open(reader, skipRowNum, cache, file, charsetName);
+                nextRow = readRow();
             } catch (IOException e) {
                 throw new IOError(e.getMessage());
             }
@@ -99,18 +117,18 @@ public class CSVReader implements Iterable<String[]> {
 
         @Override
         public boolean hasNext() {
-            return nextLine != null;
+            return nextRow != null;
         }
 
         @Override
         public String[] next() {
-            if (nextLine == null)
+            if (nextRow == null)
                 throw new NoSuchElementException();
 
-            String[] ret = split(nextLine);
+            String[] ret = nextRow;
 
             try {
-                nextLine = reader.readLine();
+                nextRow = readRow();
             } catch (IOException e) {
                 throw new IOError(e.getMessage());
             }
@@ -1,6 +1,11 @@
 package xyz.jiel.csv;
 
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -16,12 +21,68 @@ abstract class Reader<E> implements Iterator<E>{
     private char quoteChar;
     private char delimiter;
 
+    /** the source of the split rows, the lines of the csv or a cache file */
+    private RowSource source;
+
     Reader(char delimiter, char quoteChar, char escapeChar) {
         this.delimiter = delimiter;
         this.quoteChar = quoteChar;
         this.escapeChar = escapeChar;
     }
 
+    /**
+     * Prepare the rows to be read by {@code readRow()}, skip the first {@code skipRowNum}
+     * lines. If {@code cache} is not null and the csv is read from {@code file}, the rows
+     * are read from the cache, and the {@code reader} is closed. If the cache fails, the
+     * {@code file} is opened again and read without the cache.
+     *
+     * @param reader the reader of the csv.
+     * @param skipRowNum the number of the lines that be skipped.
+     * @param cache the cache of parsed csv files, may be null.
+     * @param file the csv file, or null if the csv is read from a stream.
+     * @param charsetName the charset of the {@code file}.
+     * @throws IOException
+     */
+    void open(BufferedReader reader, int skipRowNum, CSVCache cache,
+              File file, String charsetName) throws IOException {
+        if (cache != null && file != null) {
+            try {
+                source = cache.rows(reader, file, charsetName, this, skipRowNum);
+                return;
+            } catch (IOException e) {
+                reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), charsetName));
+            }
+        }
+
+        int skipped = 0;
+        while (skipped < skipRowNum && reader.readLine() != null)
+            skipped++;
+        source = new LineSource(reader, skipped);
+    }
+
+    /** Get the number of the skipped lines, see {@code RowSource.skipped()}. */
+    int skipped() {
+        return source.skipped();
+    }
+
+    /**
+     * Read the next split row.
+     *
+     * @return the next row, or null if catch the end of the csv.
+     * @throws IOException
+     */
+    String[] readRow() throws IOException {
+        String[] row = source.next();
+        if (row == null)
+            source.close();
+        return row;
+    }
+
+    /** The config of splitting, which is a part of the key of a cache file. */
+    String config() {
+        return String.format("%04x%04x%04x", (int) delimiter, (int) quoteChar, (int) escapeChar);
+    }
+
     /**
      * Split one line string to a {@code String} array.
      *
@@ -125,5 +186,30 @@ abstract class Reader<E> implements Iterator<E>{
 
     }
 
+    private class LineSource implements RowSource {
+        private BufferedReader reader;
+        private int skipped;
+
+        LineSource(BufferedReader reader, int skipped) {
+            this.reader = reader;
+            this.skipped = skipped;
+        }
+
+        @Override
+        public int skipped() {
+            return skipped;
+        }
+
+        @Override
+        public String[] next() throws IOException {
+            String line = reader.readLine();
+            return line == null ? null : split(line);
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,105 @@
+package xyz.jiel.csv;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary layout of a split row. A row is stored as the number of bytes that follow,
+ * the number of fields, and for each field its length and its characters. A field which
+ * only contains latin-1 characters is stored with one byte per character, otherwise with
+ * two bytes per character.
+ */
+final class RowFormat {
+    private static final Charset LATIN1 = StandardCharsets.ISO_8859_1;
+    private static final Charset UTF16 = StandardCharsets.UTF_16BE;
+
+    /** reused for reading fields, grows when a longer field is met */
+    private byte[] scratch = new byte[8192];
+
+    /**
+     * Write {@code row} to {@code out}.
+     *
+     * @param out the stream to write to.
+     * @param row the row to be written.
+     * @return the number of bytes written.
+     * @throws IOException
+     */
+    static int write(DataOutputStream out, String[] row) throws IOException {
+        byte[][] fields = new byte[row.length][];
+        boolean[] wide = new boolean[row.length];
+        int size = 4;
+        for (int i = 0; i < row.length; i++) {
+            wide[i] = !isLatin1(row[i]);
+            fields[i] = row[i].getBytes(wide[i] ? UTF16 : LATIN1);
+            size += 4 + fields[i].length;
+        }
+
+        out.writeInt(size);
+        out.writeInt(row.length);
+        for (int i = 0; i < row.length; i++) {
+            out.writeInt(fields[i].length << 1 | (wide[i] ? 1 : 0));
+            out.write(fields[i]);
+        }
+        return 4 + size;
+    }
+
+    /**
+     * Read a row from the current position of {@code buf}, the size of the row has been
+     * consumed already.
+     */
+    String[] read(ByteBuffer buf) {
+        String[] row = new String[buf.getInt()];
+        for (int i = 0; i < row.length; i++) {
+            int head = buf.getInt();
+            int len = head >>> 1;
+            byte[] bytes = scratch(len);
+            buf.get(bytes, 0, len);
+            row[i] = new String(bytes, 0, len, (head & 1) == 0 ? LATIN1 : UTF16);
+        }
+        return row;
+    }
+
+    /**
+     * Read a row from {@code in}.
+     *
+     * @return the row, or null if catch the end of the stream.
+     * @throws IOException
+     */
+    String[] read(DataInputStream in) throws IOException {
+        int b = in.read();
+        if (b == -1)
+            return null;
+        // the rest of the size, which is not needed when reading sequentially
+        in.readShort();
+        in.readByte();
+
+        String[] row = new String[in.readInt()];
+        for (int i = 0; i < row.length; i++) {
+            int head = in.readInt();
+            int len = head >>> 1;
+            byte[] bytes = scratch(len);
+            in.readFully(bytes, 0, len);
+            row[i] = new String(bytes, 0, len, (head & 1) == 0 ? LATIN1 : UTF16);
+        }
+        return row;
+    }
+
+    private byte[] scratch(int len) {
+        if (scratch.length < len)
+            scratch = new byte[Math.max(len, scratch.length * 2)];
+        return scratch;
+    }
+
+    private static boolean isLatin1(String s) {
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            if (s.charAt(i) > 0xFF)
+                return false;
+        }
+        return true;
+    }
+}
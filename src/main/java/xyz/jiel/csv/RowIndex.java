@@ -0,0 +1,197 @@
+package xyz.jiel.csv;
+
+import java.util.Arrays;
+
+/**
+ * A compact hash index of rows, used by {@code CSVJoin} and {@code CSVDedup}. The rows are not
+ * kept as objects, all fields are packed into one {@code char} array, and the hash table and
+ * the chains of the rows are {@code int} arrays. So the size of the index is close to the size
+ * of the characters of the rows.
+ *
+ * <p>A row is stored as its number of fields, and for each field its length and its characters.
+ * A number is stored in two characters.
+ */
+final class RowIndex {
+    /** the arena is never grown beyond this number of characters */
+    private static final int MAX_ARENA = 1 << 30;
+
+    /** the columns of a stored row which form the key */
+    private int[] keys;
+
+    private char[] arena = new char[1 << 12];
+    private int used;
+
+    /** the offset in the arena, the hash and the next row in the chain of each row */
+    private int[] offsets = new int[64];
+    private int[] hashes = new int[64];
+    private int[] chain = new int[64];
+    private int size;
+
+    /** the first row of each bucket, or -1 */
+    private int[] buckets = newBuckets(64);
+
+    RowIndex(int[] keys) {
+        this.keys = keys;
+    }
+
+    /**
+     * Hash the {@code cols} of {@code row}.
+     */
+    static int hash(String[] row, int[] cols) {
+        int h = 1;
+        for (int col : cols)
+            h = 31 * h + row[col].hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** The approximate number of bytes used by this index. */
+    long bytes() {
+        return 2L * arena.length + 4L * (offsets.length * 3 + buckets.length);
+    }
+
+    /** Whether the arena can not hold {@code row} any more. */
+    boolean full(String[] row) {
+        long need = 2;
+        for (String field : row)
+            need += 2 + field.length();
+        return used + need > MAX_ARENA;
+    }
+
+    /**
+     * Add {@code row} whose key hash is {@code hash}.
+     *
+     * @return the id of the added row.
+     */
+    int add(String[] row, int hash) {
+        int start = used;
+        putInt(row.length);
+        for (String field : row) {
+            int len = field.length();
+            putInt(len);
+            ensure(len);
+            field.getChars(0, len, arena, used);
+            used += len;
+        }
+
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+            chain = Arrays.copyOf(chain, size * 2);
+        }
+        int id = size++;
+        offsets[id] = start;
+        hashes[id] = hash;
+
+        if (size > buckets.length * 3 / 4)
+            rehash(buckets.length * 2);
+        link(id);
+        return id;
+    }
+
+    /**
+     * Find the first row whose key equals to the {@code cols} of {@code probe}.
+     *
+     * @return the id of the row, or -1 if not found.
+     */
+    int first(String[] probe, int[] cols, int hash) {
+        return match(buckets[hash & (buckets.length - 1)], probe, cols, hash);
+    }
+
+    /**
+     * Find the row after the row {@code id} whose key equals to the {@code cols} of {@code probe}.
+     *
+     * @return the id of the row, or -1 if not found.
+     */
+    int next(int id, String[] probe, int[] cols, int hash) {
+        return match(chain[id], probe, cols, hash);
+    }
+
+    /** Decode the row {@code id}. */
+    String[] row(int id) {
+        int pos = offsets[id];
+        String[] row = new String[getInt(pos)];
+        pos += 2;
+        for (int i = 0; i < row.length; i++) {
+            int len = getInt(pos);
+            row[i] = new String(arena, pos + 2, len);
+            pos += 2 + len;
+        }
+        return row;
+    }
+
+    private int match(int id, String[] probe, int[] cols, int hash) {
+        for (; id != -1; id = chain[id]) {
+            if (hashes[id] == hash && keyEquals(id, probe, cols))
+                return id;
+        }
+        return -1;
+    }
+
+    private boolean keyEquals(int id, String[] probe, int[] cols) {
+        for (int k = 0; k < keys.length; k++) {
+            int pos = field(id, keys[k]);
+            int len = getInt(pos);
+            String value = probe[cols[k]];
+            if (value.length() != len)
+                return false;
+            pos += 2;
+            for (int i = 0; i < len; i++) {
+                if (arena[pos + i] != value.charAt(i))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /** Get the offset of the {@code col} field of the row {@code id}. */
+    private int field(int id, int col) {
+        int pos = offsets[id] + 2;
+        for (int i = 0; i < col; i++)
+            pos += 2 + getInt(pos);
+        return pos;
+    }
+
+    private void link(int id) {
+        int b = hashes[id] & (buckets.length - 1);
+        chain[id] = buckets[b];
+        buckets[b] = id;
+    }
+
+    /** Grow the table, the last added row is linked by the caller. */
+    private void rehash(int n) {
+        buckets = newBuckets(n);
+        for (int id = 0; id < size - 1; id++)
+            link(id);
+    }
+
+    private static int[] newBuckets(int n) {
+        int[] b = new int[n];
+        Arrays.fill(b, -1);
+        return b;
+    }
+
+    private void putInt(int v) {
+        ensure(2);
+        arena[used++] = (char) (v >>> 16);
+        arena[used++] = (char) v;
+    }
+
+    private int getInt(int pos) {
+        return arena[pos] << 16 | arena[pos + 1];
+    }
+
+    private void ensure(int n) {
+        long need = (long) used + n;
+        if (need <= arena.length)
+            return;
+        if (need > MAX_ARENA) {
+            throw new CSVException(String.format(
+                    "Cannot index more than %d characters of rows in memory", MAX_ARENA));
+        }
+        arena = Arrays.copyOf(arena, (int) Math.min(Math.max(need, 2L * arena.length), MAX_ARENA));
+    }
+}
@@ -0,0 +1,24 @@
+package xyz.jiel.csv;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A source of split rows. The rows come from the lines of a csv file, or from
+ * a cache file written by {@code CSVCache}.
+ */
+interface RowSource extends Closeable {
+    /**
+     * Read the next row.
+     *
+     * @return the next row, or null if catch the end of the source.
+     * @throws IOException
+     */
+    String[] next() throws IOException;
+
+    /**
+     * Get the number of the lines skipped before the first row, it is less than the requested
+     * number if the csv has fewer lines.
+     */
+    int skipped();
+}
@@ -0,0 +1,137 @@
+package xyz.jiel.csv;
+
+import xyz.jiel.exceptions.IOError;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The temporary files of rows partitioned by the hash of their keys, used by {@code CSVJoin} and
+ * {@code CSVDedup} when their index exceeds the memory limit. The rows are written at first, then
+ * each partition is read once. The file of a partition is deleted when it is read to the end, and
+ * the rest files are deleted by {@code delete()} when the iteration ends, fails or is closed.
+ */
+final class Spill {
+    private static final int BUFFER = 1 << 16;
+
+    private File[] files;
+    private DataOutputStream[] outs;
+
+    /** the partition being read */
+    private DataInputStream in;
+
+    /**
+     * Create the files of {@code partitions} partitions in {@code dir}.
+     */
+    Spill(File dir, String prefix, int partitions) throws IOException {
+        files = new File[partitions];
+        outs = new DataOutputStream[partitions];
+        try {
+            for (int p = 0; p < partitions; p++) {
+                files[p] = File.createTempFile("csv-" + prefix, ".tmp", dir);
+                outs[p] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(files[p]), BUFFER));
+            }
+        } catch (IOException | RuntimeException e) {
+            delete();
+            throw e;
+        }
+    }
+
+    int partitions() {
+        return files.length;
+    }
+
+    /**
+     * Write {@code row} into one of the partitions by the {@code hash} of its keys.
+     */
+    void write(String[] row, int hash) throws IOException {
+        /* mix the hash, so the rows of one partition spread over the whole index */
+        int h = hash * 0x9E3779B9;
+        RowFormat.write(outs[(h >>> 1) % outs.length], row);
+    }
+
+    /** Finish writing, the partitions can be read after it. */
+    void finish() throws IOException {
+        for (int p = 0; p < outs.length; p++) {
+            outs[p].close();
+            outs[p] = null;
+        }
+    }
+
+    /**
+     * Read the rows of the {@code partition}, its file is deleted when all the rows are read.
+     */
+    Iterator<String[]> rows(final int partition) throws IOException {
+        closeInput();
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(files[partition]), BUFFER));
+        final DataInputStream input = in;
+        final RowFormat format = new RowFormat();
+        return new Iterator<String[]>() {
+            private String[] nextRow = read();
+
+            private String[] read() {
+                try {
+                    String[] row = format.read(input);
+                    if (row == null) {
+                        closeInput();
+                        files[partition].delete();
+                    }
+                    return row;
+                } catch (IOException e) {
+                    throw new IOError(e.getMessage());
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return nextRow != null;
+            }
+
+            @Override
+            public String[] next() {
+                if (nextRow == null)
+                    throw new NoSuchElementException();
+                String[] ret = nextRow;
+                nextRow = read();
+                return ret;
+            }
+
+            @Override
+            public void remove() {
+
+            }
+        };
+    }
+
+    private void closeInput() throws IOException {
+        if (in != null) {
+            in.close();
+            in = null;
+        }
+    }
+
+    /**
+     * Close and delete all the files, the failures are ignored. It can be called many times.
+     */
+    void delete() {
+        try {
+            closeInput();
+        } catch (IOException e) {
+            // the file is deleted anyway
+        }
+        for (int p = 0; p < files.length; p++) {
+            if (outs[p] != null) {
+                try {
+                    outs[p].close();
+                } catch (IOException e) {
+                    // the file is deleted anyway
+                }
+                outs[p] = null;
+            }
+            if (files[p] != null) {
+                files[p].delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package xyz.jiel.exceptions;
+
+public class CancelledError extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public CancelledError(String message) {
+        super(message);
+    }
+}
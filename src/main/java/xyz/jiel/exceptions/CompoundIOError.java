@@ -0,0 +1,22 @@
+package xyz.jiel.exceptions;
+
+import java.util.Map;
+
+/**
+ * Thrown when an operation on many files has finished, but some of the files failed.
+ * The failures are the error messages keyed by the paths of the failed files.
+ */
+public class CompoundIOError extends IOError {
+    private static final long serialVersionUID = 1L;
+
+    private Map<String, String> failures;
+
+    public CompoundIOError(String message, Map<String, String> failures) {
+        super(message);
+        this.failures = failures;
+    }
+
+    public Map<String, String> failures() {
+        return failures;
+    }
+}
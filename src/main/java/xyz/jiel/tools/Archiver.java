@@ -0,0 +1,510 @@
+package xyz.jiel.tools;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import xyz.jiel.exceptions.FileNotFoundError;
+import xyz.jiel.exceptions.IOError;
+
+/**
+ * Create and extract archives of trees, created by <code>Shutil.archiver()</code>. The
+ * formats are "zip", "tar" and "gztar" (a tar compressed by gzip), as Python's shutil.
+ *
+ * <p>The entries are written as the tree is walked, so the list of the files is never built
+ * in memory. A "gztar" archive is compressed in blocks of <code>blockSize</code> bytes on a
+ * pool of <code>threads</code> workers, as pigz does, the result is a normal gzip file. A zip
+ * archive is compressed entry by entry on the calling thread.
+ *
+ * <p>When extracting, the entries are read on the calling thread, and the files are written
+ * on the pool. The entries which would be extracted outside the target directory are refused,
+ * by their names or through symbolic links, and so are the links which lead outside it. The
+ * files are written without following the links which are already there.
+ *
+ * <pre>
+ * File archive = Shutil.archiver().threads(16).make("dist/results", "gztar", "results");
+ * Shutil.archiver().unpack(archive, new File("/tmp/results"), null);
+ * </pre>
+ */
+public final class Archiver {
+    /** the files not larger than this are read into memory and written on the pool */
+    private static final int SMALL_FILE = 256 << 10;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private int blockSize = 128 << 10;
+
+    public int threads() { return threads; }
+    public Archiver threads(int n) { threads = n; return this; }
+
+    /** Set the level of the compression, from 0 to 9, -1 means the default level. */
+    public int level() { return level; }
+    public Archiver level(int n) { level = n; return this; }
+
+    /** Set the number of bytes compressed by a worker at once, at least 32 KB. */
+    public int blockSize() { return blockSize; }
+    public Archiver blockSize(int bytes) { blockSize = Math.max(bytes, 32 << 10); return this; }
+
+    public File make(String baseName, String format, String rootDir) {
+        return make(new File(baseName), format, new File(rootDir));
+    }
+
+    /**
+     * Create an archive of the tree <code>rootDir</code>, the names of the entries are
+     * relative to <code>rootDir</code>.
+     *
+     * @param baseName the path of the archive without the extension
+     * @param format "zip", "tar" or "gztar"
+     * @param rootDir the directory to be archived
+     * @return the archive, <code>baseName</code> with the extension of <code>format</code>
+     */
+    public File make(File baseName, String format, File rootDir) {
+        if (!rootDir.isDirectory()) {
+            throw new FileNotFoundError(
+                String.format("Except a directory, but rootDir is not: %s", rootDir.getPath())
+            );
+        }
+        File archive = new File(baseName.getPath() + extension(format));
+        ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        boolean done = false;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(archive), Shutil.BUFFER_SIZE)) {
+            if (format.equals("zip")) {
+                zip(rootDir, out);
+            } else if (format.equals("tar")) {
+                tar(rootDir, out);
+            } else {
+                tar(rootDir, new ParallelGzipOutputStream(out, pool, threads, level, blockSize));
+            }
+            done = true;
+        } catch (IOException e) {
+            throw new IOError(String.format("Cannot archive %s to %s: %s", rootDir.getPath(), archive.getPath(), e));
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+            if (!done) {
+                archive.delete();
+            }
+        }
+        return archive;
+    }
+
+    private static String extension(String format) {
+        switch (format) {
+        case "zip":
+            return ".zip";
+        case "tar":
+            return ".tar";
+        case "gztar":
+            return ".tar.gz";
+        default:
+            throw new IOError(String.format("Unknown archive format: %s", format));
+        }
+    }
+
+    /** Guess the format of an archive by its name. */
+    private static String format(File archive) {
+        String name = archive.getName().toLowerCase(Locale.ROOT);
+        if (name.endsWith(".zip")) {
+            return "zip";
+        }
+        if (name.endsWith(".tar.gz") || name.endsWith(".tgz")) {
+            return "gztar";
+        }
+        if (name.endsWith(".tar")) {
+            return "tar";
+        }
+        throw new IOError(String.format("Unknown archive format: %s", archive.getPath()));
+    }
+
+    private void zip(File root, OutputStream stream) throws IOException {
+        ZipOutputStream out = new ZipOutputStream(stream);
+        out.setLevel(level);
+        byte[] buffer = new byte[1 << 16];
+        // zip has no symbolic links, follow them as Python's shutil does
+        try (Walker walker = Shutil.walk(root).followLinks(true)) {
+            for (Walker.Entry entry : walker) {
+                if (!entry.isDirectory() && !entry.isFile()) {
+                    continue;
+                }
+                String name = entry.slashed();
+                ZipEntry z = new ZipEntry(entry.isDirectory() ? name + "/" : name);
+                z.setTime(entry.attrs().lastModifiedTime().toMillis());
+                out.putNextEntry(z);
+                if (entry.isFile()) {
+                    try (InputStream in = Files.newInputStream(entry.path())) {
+                        int n;
+                        while ((n = in.read(buffer)) != -1) {
+                            out.write(buffer, 0, n);
+                        }
+                    }
+                }
+                out.closeEntry();
+            }
+        }
+        out.finish();
+    }
+
+    private void tar(File root, OutputStream stream) throws IOException {
+        Tar.Output out = new Tar.Output(stream);
+        byte[] buffer = new byte[1 << 16];
+        try (Walker walker = Shutil.walk(root)) {
+            for (Walker.Entry entry : walker) {
+                Tar.Entry t = new Tar.Entry();
+                t.name = entry.slashed();
+                t.mtime = entry.attrs().lastModifiedTime().to(TimeUnit.SECONDS);
+                t.mode = mode(entry.path(), entry.isDirectory() ? 0755 : 0644);
+                if (entry.isDirectory()) {
+                    t.name += "/";
+                    t.type = Tar.DIRECTORY;
+                } else if (entry.isLink()) {
+                    t.type = Tar.SYMLINK;
+                    t.linkname = Files.readSymbolicLink(entry.path()).toString();
+                } else if (entry.isFile()) {
+                    t.size = entry.size();
+                } else {
+                    // sockets, devices and pipes are not archived
+                    continue;
+                }
+                out.putEntry(t);
+                if (entry.isFile()) {
+                    try (InputStream in = Files.newInputStream(entry.path())) {
+                        long remaining = t.size;
+                        while (remaining > 0) {
+                            int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                            if (n == -1) {
+                                throw new IOException(String.format("%s is truncated while archiving", entry.path()));
+                            }
+                            out.write(buffer, 0, n);
+                            remaining -= n;
+                        }
+                    }
+                }
+                out.closeEntry();
+            }
+        }
+        out.close();
+    }
+
+    private static int mode(Path path, int defaults) {
+        try {
+            Object mode = Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+            return (Integer) mode & 07777;
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return defaults;
+        }
+    }
+
+    public void unpack(String filename, String extractDir) {
+        unpack(new File(filename), new File(extractDir), null);
+    }
+
+    /**
+     * Extract an archive into <code>extractDir</code>, which is created if it does not
+     * exist. The failures of the files are collected, and thrown as a
+     * <code>CompoundIOError</code> at the end.
+     *
+     * @param filename the archive
+     * @param extractDir the directory to be extracted into
+     * @param format "zip", "tar" or "gztar", or null to guess it by the extension of the archive
+     */
+    public void unpack(File filename, File extractDir, String format) {
+        if (!filename.isFile()) {
+            throw new FileNotFoundError(
+                String.format("File filename does not exist or is not a file: %s", filename.getPath())
+            );
+        }
+        if (format == null) {
+            format = format(filename);
+        } else {
+            extension(format);
+        }
+
+        Writers writers = new Writers();
+        try {
+            Destination dir = new Destination(extractDir.toPath().toAbsolutePath().normalize());
+            if (format.equals("zip")) {
+                unzip(filename, dir, writers);
+            } else {
+                InputStream in = new FileInputStream(filename);
+                if (format.equals("gztar")) {
+                    in = new GZIPInputStream(in, 1 << 16);
+                }
+                try (Tar.Input tar = new Tar.Input(new BufferedInputStream(in, Shutil.BUFFER_SIZE))) {
+                    untar(tar, dir, writers);
+                }
+            }
+        } catch (IOException e) {
+            writers.report.fail(filename.getPath(), e);
+        } finally {
+            writers.await();
+        }
+        writers.report.check(String.format("Cannot extract %s to %s", filename.getPath(), extractDir.getPath()));
+    }
+
+    private void unzip(File filename, Destination dir, Writers writers) throws IOException {
+        try (final ZipFile zip = new ZipFile(filename)) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                final Path target;
+                try {
+                    target = dir.resolve(entry.getName());
+                    dir.mkdirs(entry.isDirectory() ? target : target.getParent());
+                } catch (IOException e) {
+                    writers.report.fail(entry.getName(), e);
+                    continue;
+                }
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                writers.submit(target, new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        try (InputStream in = zip.getInputStream(entry); OutputStream out = create(target)) {
+                            copy(in, out);
+                        }
+                        if (entry.getTime() != -1) {
+                            Files.setLastModifiedTime(target, FileTime.fromMillis(entry.getTime()));
+                        }
+                        return null;
+                    }
+                });
+            }
+            // the pool reads the zip file, wait before closing it
+            writers.await();
+        }
+    }
+
+    private void untar(Tar.Input tar, Destination dir, Writers writers) throws IOException {
+        // the links are created at last, so no file is written through a link of the archive
+        List<Object[]> links = new ArrayList<>();
+        Tar.Entry entry;
+        while ((entry = tar.nextEntry()) != null) {
+            Path target;
+            try {
+                target = dir.resolve(entry.name);
+                dir.mkdirs(entry.isDirectory() ? target : target.getParent());
+            } catch (IOException e) {
+                writers.report.fail(entry.name, e);
+                continue;
+            }
+            if (entry.type == Tar.SYMLINK || entry.type == Tar.HARDLINK) {
+                links.add(new Object[]{target, entry});
+            } else if (entry.isFile()) {
+                if (entry.size <= SMALL_FILE) {
+                    byte[] data = new byte[(int) entry.size];
+                    int off = 0;
+                    while (off < data.length) {
+                        off += tar.read(data, off, data.length - off);
+                    }
+                    writers.submit(target, write(target, data, entry));
+                } else {
+                    try (OutputStream out = create(target)) {
+                        copy(tar, out);
+                        attributes(target, entry);
+                    } catch (IOException e) {
+                        // the rest of the entry is skipped by the next entry
+                        writers.report.fail(target.toString(), e);
+                    }
+                }
+            }
+        }
+
+        writers.await();
+        List<Path> symlinks = new ArrayList<>();
+        for (Object[] link : links) {
+            Path target = (Path) link[0];
+            Tar.Entry e = (Tar.Entry) link[1];
+            try {
+                Files.deleteIfExists(target);
+                if (e.type == Tar.SYMLINK) {
+                    Path linkname = Paths.get(e.linkname);
+                    if (linkname.isAbsolute()) {
+                        throw new IOException(String.format("The link %s is absolute", e.linkname));
+                    }
+                    dir.check(target.getParent().toRealPath().resolve(linkname).normalize(), e.linkname);
+                    Files.createSymbolicLink(target, linkname);
+                    symlinks.add(target);
+                } else {
+                    // the real path is checked, so the link is not followed out of the directory
+                    Path source = dir.resolve(e.linkname).toRealPath();
+                    dir.check(source, e.linkname);
+                    Files.createLink(target, source);
+                }
+            } catch (IOException | UnsupportedOperationException ex) {
+                writers.report.fail(target.toString(), ex);
+            }
+        }
+
+        // a symbolic link can lead out through the links created after it, remove it
+        for (Path link : symlinks) {
+            try {
+                dir.check(link.toRealPath(), Files.readSymbolicLink(link).toString());
+            } catch (NoSuchFileException ex) {
+                // a dangling link, it is not followed by the extraction
+            } catch (IOException ex) {
+                writers.report.fail(link.toString(), ex);
+                try {
+                    Files.deleteIfExists(link);
+                } catch (IOException ignored) {
+                    // reported already
+                }
+            }
+        }
+    }
+
+    private static Callable<Void> write(final Path target, final byte[] data, final Tar.Entry entry) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                try (OutputStream out = create(target)) {
+                    out.write(data);
+                }
+                attributes(target, entry);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Create the file <code>target</code>, the entry which exists at it is removed first as tar
+     * does, so nothing is written through a link which is already there.
+     */
+    private static OutputStream create(Path target) throws IOException {
+        Files.deleteIfExists(target);
+        return Files.newOutputStream(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE,
+                LinkOption.NOFOLLOW_LINKS);
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+    }
+
+    private static void attributes(Path target, Tar.Entry entry) throws IOException {
+        Files.setLastModifiedTime(target, FileTime.from(entry.mtime, TimeUnit.SECONDS));
+        try {
+            Files.setPosixFilePermissions(target, permissions(entry.mode));
+        } catch (UnsupportedOperationException e) {
+            // not a posix file system
+        }
+    }
+
+    private static Set<PosixFilePermission> permissions(int mode) {
+        Set<PosixFilePermission> ret = EnumSet.noneOf(PosixFilePermission.class);
+        PosixFilePermission[] all = PosixFilePermission.values();
+        // the values are ordered from OWNER_READ (0400) to OTHERS_EXECUTE (0001)
+        for (int i = 0; i < all.length; i++) {
+            if ((mode & (0400 >> i)) != 0) {
+                ret.add(all[i]);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * The directory which an archive is extracted into. The entries are refused if they are
+     * outside it, by their names or by the symbolic links in their paths. It is used by the
+     * reading thread only.
+     */
+    private static final class Destination {
+        private Path dir;
+        /** the real path of <code>dir</code>, the symbolic links are followed */
+        private Path real;
+        /** the directories which are created and checked */
+        private Set<Path> checked = new HashSet<>();
+
+        Destination(Path dir) throws IOException {
+            Files.createDirectories(dir);
+            this.dir = dir;
+            this.real = dir.toRealPath();
+        }
+
+        /**
+         * Resolve the name of an entry under the directory, refuse it if it is outside.
+         */
+        Path resolve(String name) throws IOException {
+            Path ret = dir.resolve(name).normalize();
+            if (!ret.startsWith(dir)) {
+                throw new IOException(String.format("The entry %s is outside the target directory", name));
+            }
+            return ret;
+        }
+
+        /**
+         * Create the directory <code>path</code>, refuse it if it leads out of the directory
+         * through a symbolic link.
+         */
+        void mkdirs(Path path) throws IOException {
+            if (checked.contains(path)) {
+                return;
+            }
+            Files.createDirectories(path);
+            check(path.toRealPath(), dir.relativize(path).toString());
+            checked.add(path);
+        }
+
+        /**
+         * Refuse the real path <code>path</code> of the entry or link <code>name</code> if it
+         * is outside the directory.
+         */
+        void check(Path path, String name) throws IOException {
+            if (!path.startsWith(real)) {
+                throw new IOException(String.format("The entry %s is outside the target directory", name));
+            }
+        }
+    }
+
+    /**
+     * Write the extracted files on a pool, and collect the failures.
+     */
+    private final class Writers {
+        private Report report = new Report();
+        private ThreadPoolExecutor pool;
+
+        Writers() {
+            if (threads > 1) {
+                pool = Pools.bounded(threads, threads * 16);
+            }
+        }
+
+        void submit(final Path target, final Callable<Void> task) {
+            Runnable run = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.call();
+                        report.entry(0);
+                    } catch (Exception e) {
+                        report.fail(target.toString(), e);
+                    }
+                }
+            };
+            if (pool == null) {
+                run.run();
+            } else {
+                pool.execute(run);
+            }
+        }
+
+        /** Wait for the submitted files, no file can be submitted after it. */
+        void await() {
+            if (pool == null) {
+                return;
+            }
+            Pools.await("extracting the files", pool);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package xyz.jiel.tools;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Create copy-on-write clones of files. The FICLONE ioctl is not reachable from Java,
+ * so a clone is created by "cp --reflink=always", which fails instead of copying when
+ * the file system cannot clone. Many files of one directory are cloned by one "cp -t"
+ * call, so a tree is not cloned by one process per file. The file stores which report
+ * that they cannot clone are remembered, and not tried again.
+ */
+final class Clones {
+    /** the most files cloned by one "cp" call */
+    static final int MAX_FILES = 1024;
+
+    /** the messages of "cp" when the file system cannot clone, in the C locale */
+    private static final String[] UNSUPPORTED = {
+        "Operation not supported", "Invalid cross-device link", "Inappropriate ioctl for device"
+    };
+
+    /** the most characters of the messages of "cp" which are kept */
+    private static final int MAX_OUTPUT = 64 << 10;
+
+    /** whether each file store can clone a file */
+    private static final Map<FileStore, Boolean> SUPPORTED = new ConcurrentHashMap<>();
+
+    /** false if "cp" cannot be run at all */
+    private static volatile boolean available = true;
+
+    private Clones() {}
+
+    /**
+     * Try to clone <code>src</code> to <code>dst</code>.
+     *
+     * @return false if the file is not cloned, and should be copied.
+     */
+    static boolean clone(File src, File dst) throws IOException {
+        return clone(Collections.singletonList(new File[]{src, dst})).isEmpty();
+    }
+
+    /**
+     * Try to clone each pair {src, dst} of <code>files</code>. The adjacent pairs whose
+     * sources are in one directory, and whose destinations are in one directory with the
+     * names of their sources, are cloned by one call of "cp", up to <code>MAX_FILES</code>.
+     *
+     * @return the pairs which are not cloned, in order, they should be copied.
+     */
+    static List<File[]> clone(List<File[]> files) throws IOException {
+        List<File[]> ret = new ArrayList<>();
+        int i = 0;
+        while (i < files.size()) {
+            int j = i + 1;
+            if (sameName(files.get(i))) {
+                while (j < files.size() && j - i < MAX_FILES && sameDirs(files.get(i), files.get(j))) {
+                    j++;
+                }
+            }
+            List<File[]> group = files.subList(i, j);
+            if (!cloneGroup(group)) {
+                ret.addAll(group);
+            }
+            i = j;
+        }
+        return ret;
+    }
+
+    private static boolean sameName(File[] pair) {
+        return pair[0].getName().equals(pair[1].getName());
+    }
+
+    private static boolean sameDirs(File[] a, File[] b) {
+        return sameName(b) && parent(a[0]).equals(parent(b[0])) && parent(a[1]).equals(parent(b[1]));
+    }
+
+    private static File parent(File f) {
+        return f.getAbsoluteFile().getParentFile();
+    }
+
+    /**
+     * Clone a group of pairs by one call of "cp".
+     *
+     * @return false if any file may not be cloned, the whole group should be copied.
+     */
+    private static boolean cloneGroup(List<File[]> group) throws IOException {
+        if (!available) {
+            return false;
+        }
+        File[] first = group.get(0);
+        File dstDir = parent(first[1]);
+        FileStore store = Files.getFileStore(first[0].toPath());
+        if (dstDir == null || !store.equals(Files.getFileStore(dstDir.toPath()))
+                || Boolean.FALSE.equals(SUPPORTED.get(store))) {
+            return false;
+        }
+
+        List<String> command = new ArrayList<>(Arrays.asList("cp", "--reflink=always"));
+        if (group.size() == 1) {
+            command.addAll(Arrays.asList("--", first[0].getPath(), first[1].getPath()));
+        } else {
+            command.addAll(Arrays.asList("-t", dstDir.getPath(), "--"));
+            for (File[] pair : group) {
+                command.add(pair[0].getPath());
+            }
+        }
+
+        boolean ok;
+        StringBuilder output = new StringBuilder();
+        try {
+            ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true);
+            // the messages are matched in English
+            builder.environment().put("LC_ALL", "C");
+            Process p = builder.start();
+            try (java.io.Reader out = new InputStreamReader(p.getInputStream(), Charset.defaultCharset())) {
+                char[] buffer = new char[1024];
+                int n;
+                while ((n = out.read(buffer)) != -1) {
+                    if (output.length() < MAX_OUTPUT) {
+                        output.append(buffer, 0, n);
+                    }
+                }
+            }
+            ok = p.waitFor() == 0;
+        } catch (IOException e) {
+            available = false;
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while cloning " + first[0].getPath());
+        }
+
+        if (ok) {
+            SUPPORTED.put(store, true);
+        } else if (unsupported(output) && !SUPPORTED.containsKey(store)) {
+            // other failures, e.g. of the permissions or the space, do not tell about the store
+            SUPPORTED.put(store, false);
+        }
+        return ok;
+    }
+
+    private static boolean unsupported(CharSequence output) {
+        String s = output.toString();
+        for (String message : UNSUPPORTED) {
+            if (s.contains(message)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,1095 @@
+package xyz.jiel.tools;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+
+import xyz.jiel.exceptions.*;
+import xyz.jiel.exceptions.IOError;
+
+/**
+ * Copy files and directories, created by <code>Shutil.copier()</code>. The static copy
+ * methods of <code>Shutil</code> use a copier with the default options.
+ *
+ * <p>By default the files are copied one after another, and the first failure is thrown.
+ * If <code>threads</code> is greater than 1, a tree is walked on the calling thread,
+ * which creates the directories, and the files are copied on a pool of <code>threads</code>
+ * workers. The files not smaller than <code>largeFile</code> are copied on another pool of
+ * <code>largeThreads</code> workers, so a few huge files do not hold up the small files.
+ * The failures are collected, and thrown as a <code>CompoundIOError</code> at the end.
+ *
+ * <pre>
+ * Shutil.copier().threads(16).copytree("build/artifacts", "/mnt/release/artifacts");
+ * </pre>
+ */
+public final class Copier {
+    /**
+     * How the content of a file is copied.
+     */
+    public enum Mode {
+        /** copy the bytes */
+        COPY,
+        /**
+         * create a hard link to the source, the copy shares the content and the metadata
+         * with the source, falls back to COPY on a different file system
+         */
+        HARDLINK,
+        /**
+         * create a copy-on-write clone on the file systems which support reflinks (e.g. btrfs,
+         * XFS), falls back to COPY on the others. The files of a tree are cloned in
+         * batches, by one "cp" call per directory.
+         */
+        CLONE
+    }
+
+    private int threads = 1;
+    private int largeThreads = 0;
+    private long largeFile = 64L << 20;
+    private boolean checksum = false;
+    private boolean delete = false;
+    private Mode mode = Mode.COPY;
+    private boolean sparse = false;
+    private boolean durable = false;
+    private String algorithm = "SHA-256";
+    private Monitor monitor;
+
+    /** the directories which have new entries, synced at the end of a durable copy */
+    private Set<Path> dirty = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+    private Map<String, String> digests = new ConcurrentSkipListMap<>();
+
+    public int threads() { return threads; }
+    public Copier threads(int n) { threads = n; return this; }
+
+    /** Set the number of workers for large files, 0 means a quarter of <code>threads</code>. */
+    public int largeThreads() { return largeThreads; }
+    public Copier largeThreads(int n) { largeThreads = n; return this; }
+
+    /** Set the size from which a file is copied on the pool of large files. */
+    public long largeFile() { return largeFile; }
+    public Copier largeFile(long bytes) { largeFile = bytes; return this; }
+
+    public Mode mode() { return mode; }
+    public Copier mode(Mode m) { mode = m; return this; }
+
+    /**
+     * Set whether the holes of sparse files are kept. The whole source is still read,
+     * but the blocks of zeros are not written.
+     */
+    public boolean sparse() { return sparse; }
+    public Copier sparse(boolean b) { sparse = b; return this; }
+
+    /**
+     * Set whether the files are copied durably. The content of a file is hashed while it is
+     * copied, it is written to a temporary name, synced to the disk, and renamed into place.
+     * At the end of a copy, each directory which gets new entries is synced once. The digests
+     * are kept in <code>digests()</code>. The holes of sparse files are not kept.
+     */
+    public boolean durable() { return durable; }
+    public Copier durable(boolean b) { durable = b; return this; }
+
+    /**
+     * Set the algorithm of the digests of a durable copy, and of the checksums of
+     * <code>sync</code>, see <code>Digester.algorithm</code>.
+     */
+    public String algorithm() { return algorithm; }
+    public Copier algorithm(String a) { algorithm = a; return this; }
+
+    /**
+     * Get the digests of the files copied durably by this copier, in lowercase hex,
+     * keyed by the paths of the copies.
+     */
+    public Map<String, String> digests() { return digests; }
+
+    /**
+     * Set the monitor which counts the copied bytes and files, and which can
+     * cancel or throttle the copy.
+     */
+    public Monitor monitor() { return monitor; }
+    public Copier monitor(Monitor m) { monitor = m; return this; }
+
+    /** Set whether <code>sync</code> compares the content instead of the modified time. */
+    public boolean checksum() { return checksum; }
+    public Copier checksum(boolean b) { checksum = b; return this; }
+
+    /** Set whether <code>sync</code> deletes the entries which only exist in the destination. */
+    public boolean delete() { return delete; }
+    public Copier delete(boolean b) { delete = b; return this; }
+
+    public void copyfile(String src, String dst){
+        copyfile(new File(src), new File(dst));
+    }
+
+    /**
+     * copy the content of file <code>src</code> to file <code>dst</code> according
+     * to the <code>mode</code>. If <code>src</code> does not exist or is not a file,
+     * a unchecked exception is threw. If the path of dst contains at least one
+     * unexisted directory, a unchecked exception is thrown.
+     *
+     * @param src the file to be copied
+     * @param dst the copied file of <code>src</code>
+     */
+    public void copyfile(File src, File dst) {
+        if(!src.isFile()) {
+            throw new FileNotFoundError(
+                String.format("File src does not exist or is not a file: %s", src.getPath())
+            );
+        }
+
+        if(dst.isDirectory()) {
+            throw new FileNotFoundError(
+                String.format("Except a file, but dst is a directory: %s", dst.getPath())
+            );
+        }
+
+        if (durable) {
+            // dst only appears when its whole content is renamed into place, so it is not created
+            File parent = dst.getAbsoluteFile().getParentFile();
+            if (parent == null || !parent.isDirectory()) {
+                throw new IOError(
+                    String.format("Cannot create file dst, maybe the path contains unexisted directories: %s", dst.getPath())
+                );
+            }
+        } else {
+            try {
+                // try to create dst, whether it exists or not.
+                dst.createNewFile();
+            } catch (IOException e) {
+                // the path of dst contains at least one does not existed directory.
+                throw new IOError(
+                    String.format("Cannot create file dst, maybe the path contains unexisted directories: %s", dst.getPath())
+                );
+            }
+        }
+
+
+        try {
+            copydata(src, dst);
+        } catch (IOException e) {
+            throw new IOError(e.getMessage());
+        }
+        Report report = new Report();
+        syncDirectories(report);
+        report.check(String.format("Cannot sync the directory of %s", dst.getPath()));
+    }
+
+    /**
+     * Copy the content of <code>src</code> to <code>dst</code> according to the
+     * <code>mode</code>, without checking them. <code>dst</code> is replaced.
+     */
+    void copydata(File src, File dst) throws IOException {
+        copydata(src, dst, true);
+    }
+
+    /**
+     * Copy the content of <code>src</code> to <code>dst</code>, it is linked first by
+     * <code>tryLink</code> according to the <code>mode</code>.
+     */
+    private void copydata(File src, File dst, boolean tryLink) throws IOException {
+        if (monitor != null) {
+            monitor.file(src.getPath());
+        }
+        if (!(tryLink && link(src, dst))) {
+            if (durable) {
+                digests.put(dst.getPath(), Digester.hex(Shutil.copydurable(src, dst, algorithm, monitor)));
+                dirty.add(dst.getAbsoluteFile().toPath().getParent());
+            } else if (sparse) {
+                Shutil.copysparse(src, dst, monitor);
+            } else {
+                Shutil.copydata(src, dst, monitor);
+            }
+        }
+        if (monitor != null) {
+            monitor.fileDone();
+        }
+    }
+
+    /**
+     * Link or clone <code>src</code> to <code>dst</code> according to the <code>mode</code>.
+     *
+     * @return false if the content should be copied.
+     */
+    private boolean link(File src, File dst) throws IOException {
+        boolean linked = false;
+        switch (mode) {
+        case HARDLINK:
+            Files.deleteIfExists(dst.toPath());
+            try {
+                Files.createLink(dst.toPath(), src.toPath());
+                linked = true;
+            } catch (IOException | UnsupportedOperationException e) {
+                // e.g. on different file systems, copy it
+            }
+            break;
+        case CLONE:
+            linked = Clones.clone(src, dst);
+            break;
+        default:
+            break;
+        }
+        if (linked && monitor != null) {
+            monitor.add(src.length());
+        }
+        return linked;
+    }
+
+    public void move(String src, String dst){
+        move(new File(src), new File(dst));
+    }
+
+    /**
+     * Move a file or direcotry to another location. It is similar
+     * to the Unix "mv" command. <code>src</code> is moved to the same
+     * location that <code>copy</code> copies it to.
+     *
+     * <p>At first <code>src</code> is renamed atomically, which is a single
+     * metadata operation on the same file system. If it is on another file
+     * system, <code>src</code> is copied durably with the symbolic links kept as
+     * links, the digests of the copies are verified against the sources, and then
+     * <code>src</code> is removed. If the copy fails, the partial copy is removed
+     * and <code>src</code> is kept.
+     *
+     * @param src the source file to be moved
+     * @param dst the destination to be moved
+     */
+    public void move(File src, File dst){
+        if (!Files.exists(src.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+            throw new FileNotFoundError(
+                String.format("File src does not exist: %s", src.getPath())
+            );
+        }
+
+        boolean dstExisted = dst.exists();
+        File target = target(src, dst);
+        try {
+            if (monitor != null) {
+                monitor.file(src.getPath());
+            }
+            Files.move(src.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            if (monitor != null) {
+                monitor.fileDone();
+            }
+            return;
+        } catch (AtomicMoveNotSupportedException e) {
+            // src and target are on different file systems, copy it
+        } catch (IOException e) {
+            throw new IOError(
+                String.format("Cannot move %s to %s: %s", src.getPath(), target.getPath(), e)
+            );
+        }
+
+        boolean existed = Files.exists(target.toPath(), LinkOption.NOFOLLOW_LINKS);
+        // the copy is on the disk before src is removed, since it may be the only one
+        Copier copier = durableCopier();
+        try {
+            if (Files.isSymbolicLink(src.toPath())) {
+                Files.deleteIfExists(target.toPath());
+                Files.createSymbolicLink(target.toPath(), Files.readSymbolicLink(src.toPath()));
+                Shutil.syncdir(target.getAbsoluteFile().toPath().getParent());
+            } else if (src.isFile()) {
+                copier.copyfile(src, target);
+            } else {
+                copier.copytree(src, target, false);
+            }
+            copier.verify(src, target);
+        } catch (IOException | RuntimeException e) {
+            if (!existed) {
+                removePartial(target);
+            }
+            if (!dstExisted && !target.equals(dst)) {
+                // the parent created by target()
+                dst.delete();
+            }
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+            throw new IOError(
+                String.format("Cannot move %s to %s: %s", src.getPath(), target.getPath(), e)
+            );
+        }
+
+        if (!src.isDirectory() || Files.isSymbolicLink(src.toPath())) {
+            if (!src.delete()) {
+                throw new IOError(
+                    String.format("Cannot remove the moved file: %s", src.getPath())
+                );
+            }
+        } else {
+            Shutil.rmtree(src, 1, monitor).check(String.format("Cannot remove %s", src.getPath()));
+        }
+    }
+
+    /**
+     * Remove the partial copy <code>target</code> of a failed move, the failures are ignored
+     * since the error of the move is thrown.
+     */
+    private static void removePartial(File target) {
+        try {
+            if (target.isDirectory() && !Files.isSymbolicLink(target.toPath())) {
+                Shutil.rmtree(target, 1, null);
+            } else {
+                Files.deleteIfExists(target.toPath());
+            }
+        } catch (IOException | RuntimeException e) {
+            // the error of the move is thrown
+        }
+    }
+
+    /**
+     * Get the location that <code>src</code> is moved to, the parent
+     * directory of a moved directory is created.
+     */
+    private static File target(File src, File dst) {
+        if (dst.isDirectory()) {
+            return new File(dst, src.getName());
+        }
+        if (src.isDirectory()) {
+            if (dst.exists()) {
+                throw new IOError(
+                    "cannot move a directory to a file"
+                );
+            }
+            dst.mkdirs();
+            return new File(dst, src.getName());
+        }
+        return dst;
+    }
+
+    /**
+     * A copier with the options of this one, which copies durably. It copies the data
+     * for the fallback of <code>move</code>, whatever the <code>mode</code> is.
+     */
+    private Copier durableCopier() {
+        Copier ret = new Copier();
+        ret.threads = threads;
+        ret.largeThreads = largeThreads;
+        ret.largeFile = largeFile;
+        ret.algorithm = algorithm;
+        ret.monitor = monitor;
+        ret.durable = true;
+        return ret;
+    }
+
+    /**
+     * Verify that every file under <code>src</code> has a copy under <code>dst</code>
+     * with the digest computed while it was copied durably by this copier, and every
+     * symbolic link has a link to the same target, before <code>src</code> is removed.
+     */
+    private void verify(final File src, final File dst) {
+        final Path from = src.toPath();
+        final Path to = dst.toPath();
+        try {
+            Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Path copied = to.resolve(from.relativize(file));
+                    boolean same;
+                    if (attrs.isSymbolicLink()) {
+                        same = Files.isSymbolicLink(copied)
+                                && Files.readSymbolicLink(copied).equals(Files.readSymbolicLink(file));
+                    } else {
+                        String digest = digests.get(copied.toString());
+                        same = digest != null && Files.isRegularFile(copied, LinkOption.NOFOLLOW_LINKS)
+                                && digest.equals(Digester.hex(Digester.hash(file, algorithm)));
+                    }
+                    if (!same) {
+                        throw new IOError(
+                            String.format("The copy of %s is incomplete, %s is kept", file, src.getPath())
+                        );
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new IOError(e.getMessage());
+        }
+    }
+
+    public void copy(String src, String dst){
+        copy(new File(src), new File(dst));
+    }
+
+    /**
+     * Copy a file or a directory to another location.
+     * If <code>dst</code> is a directory, copying <code>src</code>
+     * as a child of <code>dst</code>. If <code>dst</code> is an
+     * existed file, it will be overwrited.
+     *
+     * @param src the source file to be copied.
+     * @param dst the destination of a copied file.
+     */
+    public void copy(File src, File dst){
+        if (!src.exists()) {
+            throw new FileNotFoundError(
+                String.format("File src does not exist: %s", src.getPath())
+            );
+        }
+
+        // Create dst as a file or directory according to src
+        if (!dst.exists()){
+            if(src.isFile()){
+                try {
+                    dst.createNewFile();
+                } catch (IOException e){
+                    throw new IOError(
+                        String.format("Cannot create file dst: %s", dst.getPath())
+                    );
+                }
+            } else {
+                dst.mkdirs();
+            }
+        }
+
+        if(src.isDirectory() && dst.isFile()) {
+            throw new IOError(
+                "cannot copy a directory to a file"
+            );
+        }
+
+        if(dst.isDirectory()){
+            dst = new File(dst, src.getName());
+        }
+        if(src.isFile()){
+            copyfile(src, dst);
+        } else {
+            copytree(src, dst);
+        }
+    }
+
+    public void copytree(String olddir, String newdir){
+        copytree(new File(olddir), new File(newdir));
+    }
+
+    /**
+     * Recursively copy a directory to another location. The <code>newdir</code>
+     * must not already exist.
+     *
+     * @param olddir the source directory
+     * @param newdir the targeted directory
+     */
+    public void copytree(File olddir, File newdir) {
+        copytree(olddir, newdir, true);
+    }
+
+    /**
+     * Copy a directory, the symbolic links are followed, or are copied as links if
+     * <code>followLinks</code> is false.
+     */
+    private void copytree(File olddir, File newdir, boolean followLinks) {
+        if(newdir.exists()) {
+            throw new FileNotFoundError(
+                String.format("File newdir exists: %s", newdir.getPath())
+            );
+        }
+        if(olddir.isFile() || !olddir.exists()) {
+            throw new FileNotFoundError(
+                String.format("Except a directory, olddir is a file or does not exist: %s", olddir.getPath())
+            );
+        }
+
+        Tasks tasks = new Tasks();
+        try {
+            walk(olddir, newdir, tasks, followLinks);
+        } finally {
+            tasks.await();
+        }
+        syncDirectories(tasks.report());
+        if (monitor != null) {
+            monitor.check();
+        }
+        tasks.report().check(String.format("Cannot copy %s to %s", olddir.getPath(), newdir.getPath()));
+    }
+
+    public Report sync(String olddir, String newdir){
+        return sync(new File(olddir), new File(newdir));
+    }
+
+    /**
+     * Make the directory <code>newdir</code> the same as <code>olddir</code>, like
+     * "rsync -r -t". Unlike <code>copytree</code>, <code>newdir</code> may exist, and
+     * only the new or changed files are copied. A file is unchanged if its copy has
+     * the same size and modified time, or the same content if <code>checksum</code>
+     * is set. The copied files get the modified time of their sources. If
+     * <code>delete</code> is set, the entries which only exist under <code>newdir</code>
+     * are deleted.
+     *
+     * <p>A file or a link under <code>newdir</code> is replaced by a directory of
+     * <code>olddir</code>. A directory under <code>newdir</code> is only replaced by a file
+     * of <code>olddir</code> if <code>delete</code> is set, otherwise the file fails. A link
+     * under <code>newdir</code> is replaced by a file too, it is never followed. The entries of
+     * <code>olddir</code> which are not regular files or directories, e.g. pipes, fail.
+     *
+     * <p>The failures do not stop the others, they are returned in the report with
+     * the number of copied, skipped and deleted entries.
+     *
+     * @param olddir the source directory
+     * @param newdir the targeted directory
+     * @return the report of the synchronization
+     */
+    public Report sync(File olddir, File newdir) {
+        if(olddir.isFile() || !olddir.exists()) {
+            throw new FileNotFoundError(
+                String.format("Except a directory, olddir is a file or does not exist: %s", olddir.getPath())
+            );
+        }
+        if(newdir.isFile()) {
+            throw new IOError(
+                "cannot sync a directory to a file"
+            );
+        }
+
+        final Path from = olddir.toPath();
+        final Path to = newdir.toPath();
+        final Tasks tasks = new Tasks(true);
+        try {
+            Files.walkFileTree(from, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                    new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    Path copied = to.resolve(from.relativize(dir));
+                    try {
+                        if (!dir.equals(from)) {
+                            replace(copied, true, tasks.report());
+                        }
+                        Files.createDirectories(copied);
+                        created(copied);
+                    } catch (IOException e) {
+                        tasks.fail(dir.toFile(), e);
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+                    if (monitor != null && monitor.cancelled()) {
+                        return FileVisitResult.TERMINATE;
+                    }
+                    if (!attrs.isRegularFile()) {
+                        // e.g. a pipe, which would block a worker
+                        tasks.fail(file.toFile(), new IOError(
+                            String.format("Not a regular file: %s", file)
+                        ));
+                        return FileVisitResult.CONTINUE;
+                    }
+                    final Path copied = to.resolve(from.relativize(file));
+                    tasks.submit(file.toFile(), attrs.size(), new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            // a link in the way is removed first, so it is not written through
+                            replace(copied, false, tasks.report());
+                            if (unchanged(file, attrs, copied)) {
+                                tasks.report().skip();
+                                if (monitor != null) {
+                                    monitor.fileDone();
+                                }
+                                return null;
+                            }
+                            copydata(file.toFile(), copied.toFile());
+                            Files.setLastModifiedTime(copied, attrs.lastModifiedTime());
+                            tasks.report().entry(attrs.size());
+                            return null;
+                        }
+                    });
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    tasks.fail(file.toFile(), e);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            tasks.fail(olddir, e);
+        } finally {
+            tasks.await();
+        }
+        syncDirectories(tasks.report());
+        if (monitor != null) {
+            monitor.check();
+        }
+
+        if (delete) {
+            prune(from, to, tasks.report(), monitor);
+        }
+        return tasks.report();
+    }
+
+    /**
+     * Copy many files, the content of each source file is copied to its destination, which
+     * is replaced. It does the work of calling <code>copyfile</code> for each pair, with
+     * fewer system calls:
+     * <ul>
+     * <li>the pairs are sorted by the directories of the sources, so the files of a
+     * directory are read together,</li>
+     * <li>each parent directory of the destinations is created once,</li>
+     * <li>each source is checked by one read of its attributes,</li>
+     * <li>the small files are copied in batches, each batch is one task of the pool, and
+     * the files not smaller than <code>largeFile</code> are copied on the pool of large
+     * files.</li>
+     * </ul>
+     * The failures do not stop the others, they are returned in the report.
+     *
+     * <p>A source may be listed with many destinations, e.g. an artifact published to
+     * several places, but each destination should be listed once.
+     *
+     * @param manifest the pairs of a source file and its destination, e.g.
+     * <code>new AbstractMap.SimpleEntry&lt;&gt;(src, dst)</code>
+     * @return the report of the copy
+     */
+    public Report copyfiles(Collection<? extends Map.Entry<File, File>> manifest) {
+        List<Map.Entry<File, File>> pairs = new ArrayList<Map.Entry<File, File>>(manifest);
+        Collections.sort(pairs, new Comparator<Map.Entry<File, File>>() {
+            @Override
+            public int compare(Map.Entry<File, File> a, Map.Entry<File, File> b) {
+                String da = a.getKey().getAbsoluteFile().getParent();
+                String db = b.getKey().getAbsoluteFile().getParent();
+                int c = String.valueOf(da).compareTo(String.valueOf(db));
+                return c != 0 ? c : a.getKey().getName().compareTo(b.getKey().getName());
+            }
+        });
+
+        final Tasks tasks = new Tasks(true);
+        Map<File, IOException> parents = new HashMap<>();
+        Batch batch = new Batch(tasks);
+        try {
+            for (Map.Entry<File, File> pair : pairs) {
+                if (monitor != null && monitor.cancelled()) {
+                    break;
+                }
+                final File src = pair.getKey();
+                final File dst = pair.getValue();
+
+                File parent = dst.getAbsoluteFile().getParentFile();
+                if (!parents.containsKey(parent)) {
+                    IOException failure = null;
+                    try {
+                        Files.createDirectories(parent.toPath());
+                        created(parent.toPath());
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                    parents.put(parent, failure);
+                }
+                if (parents.get(parent) != null) {
+                    tasks.fail(src, parents.get(parent));
+                    continue;
+                }
+
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(src.toPath(), BasicFileAttributes.class);
+                } catch (IOException e) {
+                    tasks.fail(src, e);
+                    continue;
+                }
+                if (!attrs.isRegularFile()) {
+                    tasks.fail(src, new FileNotFoundError(
+                        String.format("File src is not a file: %s", src.getPath())
+                    ));
+                    continue;
+                }
+
+                final long size = attrs.size();
+                if (size >= largeFile) {
+                    tasks.submit(src, size, new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            copydata(src, dst);
+                            tasks.report().entry(size);
+                            return null;
+                        }
+                    });
+                } else {
+                    batch.add(src, dst, size);
+                }
+            }
+            batch.submit();
+        } finally {
+            tasks.await();
+        }
+        syncDirectories(tasks.report());
+        if (monitor != null) {
+            monitor.check();
+        }
+        return tasks.report();
+    }
+
+    /**
+     * A batch of small files, copied by one task. In the CLONE mode a batch holds the files
+     * of any size, and is cloned by <code>Clones</code> first, the files not cloned are copied.
+     */
+    private final class Batch {
+        /** the limits of the number of files and bytes of a batch to be copied */
+        private static final int MAX_FILES = 64;
+        private static final long MAX_BYTES = 8L << 20;
+
+        private Tasks tasks;
+        private List<File[]> files = new ArrayList<>();
+        private List<Long> sizes = new ArrayList<>();
+        private long bytes;
+
+        Batch(Tasks tasks) {
+            this.tasks = tasks;
+        }
+
+        void add(File src, File dst, long size) {
+            files.add(new File[]{src, dst});
+            sizes.add(size);
+            bytes += size;
+            boolean full = mode == Mode.CLONE ? files.size() >= Clones.MAX_FILES
+                    : files.size() >= MAX_FILES || bytes >= MAX_BYTES;
+            if (full) {
+                submit();
+            }
+        }
+
+        void submit() {
+            if (files.isEmpty()) {
+                return;
+            }
+            final List<File[]> batch = files;
+            final List<Long> batchSizes = sizes;
+            files = new ArrayList<>();
+            sizes = new ArrayList<>();
+            // a batch is always small, so it runs on the pool of small files
+            tasks.submit(batch.get(0)[0], 0, new Callable<Void>() {
+                @Override
+                public Void call() {
+                    Set<File[]> cloned = Collections.newSetFromMap(new IdentityHashMap<File[], Boolean>());
+                    if (mode == Mode.CLONE) {
+                        cloned.addAll(batch);
+                        try {
+                            cloned.removeAll(Clones.clone(batch));
+                        } catch (IOException e) {
+                            // copy them all
+                            cloned.clear();
+                        }
+                    }
+                    for (int i = 0; i < batch.size(); i++) {
+                        File[] pair = batch.get(i);
+                        try {
+                            if (cloned.contains(pair)) {
+                                cloned(pair[0], batchSizes.get(i));
+                            } else {
+                                // a clone of the file was already tried
+                                copydata(pair[0], pair[1], mode != Mode.CLONE);
+                            }
+                            tasks.report().entry(batchSizes.get(i));
+                        } catch (IOException | RuntimeException e) {
+                            tasks.fail(pair[0], e);
+                        }
+                    }
+                    return null;
+                }
+            });
+            bytes = 0;
+        }
+
+        private void cloned(File src, long size) {
+            if (monitor != null) {
+                monitor.file(src.getPath());
+                monitor.add(size);
+                monitor.fileDone();
+            }
+        }
+    }
+
+    /**
+     * Record that the directory <code>dir</code> may be created, so its parent is synced
+     * by a durable copy.
+     */
+    private void created(Path dir) {
+        if (durable) {
+            Path parent = dir.toAbsolutePath().getParent();
+            if (parent != null) {
+                dirty.add(parent);
+            }
+        }
+    }
+
+    /**
+     * Sync the directories which get new entries by a durable copy, the parents after
+     * their children. The failures are recorded in <code>report</code>.
+     */
+    private void syncDirectories(Report report) {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        List<Path> dirs = new ArrayList<>(dirty);
+        dirty.removeAll(dirs);
+        Collections.sort(dirs, Collections.reverseOrder());
+        for (Path dir : dirs) {
+            try {
+                Shutil.syncdir(dir);
+            } catch (IOException e) {
+                report.fail(dir.toString(), e);
+            }
+        }
+    }
+
+    /**
+     * Whether <code>copied</code> is the same as <code>file</code> with <code>attrs</code>.
+     */
+    private boolean unchanged(Path file, BasicFileAttributes attrs, Path copied) throws IOException {
+        BasicFileAttributes copiedAttrs;
+        try {
+            copiedAttrs = Files.readAttributes(copied, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        if (!copiedAttrs.isRegularFile() || copiedAttrs.size() != attrs.size()) {
+            return false;
+        }
+        if (checksum) {
+            return Arrays.equals(Digester.hash(file, algorithm), Digester.hash(copied, algorithm));
+        }
+        return copiedAttrs.lastModifiedTime().toMillis() == attrs.lastModifiedTime().toMillis();
+    }
+
+    /**
+     * Make way for a directory, or a regular file if <code>directory</code> is false, at
+     * <code>copied</code> by <code>sync</code>. A link or any other entry which is not a
+     * directory or a regular file is always removed, so it is never written through. A file
+     * is removed to make way for a directory, but a directory is only removed to make way
+     * for a file if <code>delete</code> is set. The removed entries are counted in
+     * <code>report</code>.
+     */
+    private void replace(Path copied, boolean directory, Report report) throws IOException {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(copied, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        if (directory ? attrs.isDirectory() : attrs.isRegularFile()) {
+            return;
+        }
+        if (!attrs.isDirectory()) {
+            Files.delete(copied);
+        } else {
+            if (!delete) {
+                throw new IOException(
+                    String.format("Cannot replace the directory %s by a file without delete", copied)
+                );
+            }
+            Report removed = Shutil.rmtree(copied.toFile(), 1, monitor);
+            if (!removed.ok()) {
+                report.failures().putAll(removed.failures());
+                throw new IOException(String.format("Cannot remove the directory %s", copied));
+            }
+        }
+        report.delete();
+    }
+
+    /**
+     * Delete the entries under <code>to</code> which do not exist under <code>from</code>.
+     */
+    private static void prune(final Path from, final Path to, final Report report, final Monitor monitor) {
+        try {
+            Files.walkFileTree(to, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (dir.equals(to) || Files.exists(from.resolve(to.relativize(dir)))) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    Report removed = Shutil.rmtree(dir.toFile(), 1, monitor);
+                    report.failures().putAll(removed.failures());
+                    report.delete();
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (!Files.exists(from.resolve(to.relativize(file)))) {
+                        try {
+                            Files.delete(file);
+                            report.delete();
+                        } catch (IOException e) {
+                            report.fail(file.toString(), e);
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    report.fail(file.toString(), e);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            report.fail(to.toString(), e);
+        }
+    }
+
+    /**
+     * Walk the tree <code>olddir</code> in a single pass, create each directory under
+     * <code>newdir</code> before its children, and schedule the files to be copied.
+     * Without <code>followLinks</code>, the symbolic links are created at once.
+     */
+    private void walk(File olddir, File newdir, final Tasks tasks, boolean followLinks) {
+        Path to = newdir.toPath();
+        try {
+            Files.createDirectories(to);
+            created(to);
+        } catch (IOException e) {
+            throw new IOError(e.getMessage());
+        }
+
+        Walker walker = Shutil.walk(olddir).followLinks(followLinks);
+        if (tasks.collecting()) {
+            walker.report(tasks.report());
+        }
+        // the clones are batched, so a tree is not cloned by one process per file
+        Batch batch = mode == Mode.CLONE ? new Batch(tasks) : null;
+        Walker.Cursor cursor = walker.iterator();
+        try {
+            while (cursor.hasNext()) {
+                if (monitor != null && monitor.cancelled()) {
+                    break;
+                }
+                Walker.Entry entry = cursor.next();
+                final File src = entry.file();
+                final File dst = to.resolve(entry.relative()).toFile();
+                if (entry.isDirectory()) {
+                    try {
+                        Files.createDirectories(dst.toPath());
+                        created(dst.toPath());
+                    } catch (IOException e) {
+                        tasks.fail(src, e);
+                        cursor.prune();
+                    }
+                    continue;
+                }
+                if (entry.isLink() && !followLinks) {
+                    try {
+                        Files.createSymbolicLink(dst.toPath(), Files.readSymbolicLink(entry.path()));
+                        created(dst.toPath());
+                        tasks.report().entry(0);
+                    } catch (IOException | UnsupportedOperationException e) {
+                        tasks.fail(src, e);
+                    }
+                    continue;
+                }
+                if (!entry.isFile()) {
+                    tasks.fail(src, new IOError(
+                        String.format("Not a regular file: %s", src.getPath())
+                    ));
+                    continue;
+                }
+
+                final long size = entry.size();
+                if (batch != null) {
+                    batch.add(src, dst, size);
+                    continue;
+                }
+                tasks.submit(src, size, new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        copydata(src, dst);
+                        tasks.report().entry(size);
+                        return null;
+                    }
+                });
+            }
+            if (batch != null) {
+                batch.submit();
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * The files to be handled. Without pools, each task is run at once on the calling
+     * thread and its failure is thrown. Otherwise the tasks are run on the pools, and
+     * the failures are collected.
+     */
+    final class Tasks {
+        private ThreadPoolExecutor small;
+        private ThreadPoolExecutor large;
+
+        private Report report = new Report();
+
+        /** whether the failures are collected even without pools */
+        private boolean collect;
+
+        Tasks() {
+            this(false);
+        }
+
+        Tasks(boolean collect) {
+            this.collect = collect;
+            if (threads <= 1)
+                return;
+
+            /* the walker runs a small file by itself when the queue is full, which bounds the
+             * number of pending tasks, the large files are few and are always queued. */
+            small = Pools.bounded(threads, threads * 64);
+            int n = largeThreads > 0 ? largeThreads : Math.max(1, threads / 4);
+            large = new ThreadPoolExecutor(n, n, 0, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+        }
+
+        /**
+         * Run the <code>task</code> which handles <code>file</code> of <code>size</code> bytes.
+         */
+        void submit(final File file, long size, final Callable<?> task) {
+            if (small == null) {
+                try {
+                    task.call();
+                } catch (Exception e) {
+                    fail(file, e);
+                }
+                return;
+            }
+
+            (size >= largeFile ? large : small).execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.call();
+                    } catch (Exception e) {
+                        fail(file, e);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Record the failure of <code>file</code>, or throw it if without pools. The
+         * cancellation is not a failure, it is thrown after all the tasks end.
+         */
+        void fail(File file, Exception e) {
+            if (e instanceof CancelledError && collecting()) {
+                return;
+            }
+            if (!collecting()) {
+                if (e instanceof RuntimeException)
+                    throw (RuntimeException) e;
+                throw new IOError(String.format("%s: %s", file.getPath(), e.getMessage()));
+            }
+            report.fail(file.getPath(), e);
+        }
+
+        Report report() {
+            return report;
+        }
+
+        /** Whether the failures are collected instead of thrown. */
+        boolean collecting() {
+            return small != null || collect;
+        }
+
+        /** Wait for all the submitted tasks. */
+        void await() {
+            if (small == null)
+                return;
+
+            Pools.await("waiting for the files to be copied", small, large);
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package xyz.jiel.tools;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import xyz.jiel.exceptions.IOError;
+
+/**
+ * Compute the content digests of files and trees, created by <code>Shutil.digester()</code>.
+ * The <code>algorithm</code> is a <code>MessageDigest</code> algorithm such as "SHA-256", or a
+ * fast non-cryptographic checksum, "CRC32" or "ADLER32". Large files are read by mapping them
+ * into memory, and the files of a tree are hashed on a pool of <code>threads</code> workers.
+ *
+ * <p>The digest of a tree is the digest of the sorted lines of "relative path, '\0', file
+ * digest, '\n'", so two trees have the same digest if they have the same files with the
+ * same contents.
+ *
+ * <p>If a <code>cache</code> file is set, the digests are kept in it, keyed by the path, size
+ * and modified time of the files, so the unchanged files are not read again.
+ *
+ * <pre>
+ * Digester digester = Shutil.digester().threads(8).cache(new File("/var/cache/digests"));
+ * if (!digester.digestTree(src).equals(digester.digestTree(dst))) { ... }
+ * </pre>
+ */
+public final class Digester {
+    /** the size from which a file is mapped into memory */
+    private static final long MAP_THRESHOLD = 1 << 20;
+
+    /** the size of the region of a file that be mapped at once */
+    private static final long MAP_WINDOW = 64L << 20;
+
+    private String algorithm = "SHA-256";
+    private int threads = 1;
+    private File cache;
+
+    /** the loaded cache, keyed by the path, the value is {size, modified time, digest} */
+    private Map<String, String[]> cached;
+    private volatile boolean dirty;
+
+    public String algorithm() { return algorithm; }
+    public Digester algorithm(String a) { algorithm = a; return this; }
+
+    public int threads() { return threads; }
+    public Digester threads(int n) { threads = n; return this; }
+
+    public File cache() { return cache; }
+    public Digester cache(File f) { cache = f; cached = null; return this; }
+
+    public String digest(String file) {
+        return digest(new File(file));
+    }
+
+    /**
+     * Compute the digest of a file.
+     *
+     * @param file the file to be hashed
+     * @return the digest in lowercase hex
+     */
+    public String digest(File file) {
+        try {
+            String ret = cachedDigest(file.toPath(), cache == null ? null : load());
+            save();
+            return ret;
+        } catch (IOException e) {
+            throw new IOError(String.format("Cannot hash %s: %s", file.getPath(), e));
+        }
+    }
+
+    public String digestTree(String root) {
+        return digestTree(new File(root));
+    }
+
+    /**
+     * Compute the digest of a tree, from the digests of its files.
+     *
+     * @param root the directory to be hashed
+     * @return the digest in lowercase hex
+     */
+    public String digestTree(File root) {
+        Hash hash = hash(algorithm);
+        for (Map.Entry<String, String> e : digests(root).entrySet()) {
+            byte[] line = String.format("%s\0%s\n", e.getKey(), e.getValue()).getBytes(StandardCharsets.UTF_8);
+            hash.update(ByteBuffer.wrap(line));
+        }
+        return hex(hash.finish());
+    }
+
+    public SortedMap<String, String> digests(String root) {
+        return digests(new File(root));
+    }
+
+    /**
+     * Compute the digests of all the files in a tree. The symbolic links are followed,
+     * as <code>copytree</code> does.
+     *
+     * @param root the directory to be hashed
+     * @return the digests keyed by the paths relative to <code>root</code>, in '/' separated
+     * form, sorted by the paths
+     */
+    public SortedMap<String, String> digests(File root) {
+        final SortedMap<String, String> ret = new ConcurrentSkipListMap<>();
+        final Report report = new Report();
+        // the cache is loaded before the workers start, they do not wait on its lock
+        final Map<String, String[]> c;
+        try {
+            c = cache == null ? null : load();
+        } catch (IOException e) {
+            throw new IOError(String.format("Cannot read the cache %s: %s", cache.getPath(), e));
+        }
+        ThreadPoolExecutor pool = threads > 1 ? Pools.bounded(threads, threads * 64) : null;
+        try (Walker walker = Shutil.walk(root).followLinks(true).report(report)) {
+            for (final Walker.Entry entry : walker) {
+                if (!entry.isFile()) {
+                    continue;
+                }
+                Runnable task = new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            ret.put(entry.slashed(), cachedDigest(entry.path(), c));
+                        } catch (IOException e) {
+                            report.fail(entry.path().toString(), e);
+                        }
+                    }
+                };
+                if (pool == null) {
+                    task.run();
+                } else {
+                    pool.execute(task);
+                }
+            }
+        } finally {
+            if (pool != null) {
+                Pools.await("hashing the files", pool);
+            }
+        }
+        try {
+            save();
+        } catch (IOException e) {
+            report.fail(cache.getPath(), e);
+        }
+        report.check(String.format("Cannot hash %s", root.getPath()));
+        return ret;
+    }
+
+    /**
+     * Get the digest of <code>file</code> from the loaded cache <code>c</code>, or compute it.
+     * Without a cache, <code>c</code> is null.
+     */
+    private String cachedDigest(Path file, Map<String, String[]> c) throws IOException {
+        if (c == null) {
+            return hex(hash(file, algorithm));
+        }
+
+        String key = file.toAbsolutePath().normalize().toString() + "\t" + algorithm;
+        String size = Long.toString(Files.size(file));
+        String mtime = Long.toString(Files.getLastModifiedTime(file).toMillis());
+        String[] hit = c.get(key);
+        if (hit != null && hit[0].equals(size) && hit[1].equals(mtime)) {
+            return hit[2];
+        }
+
+        String ret = hex(hash(file, algorithm));
+        c.put(key, new String[]{size, mtime, ret});
+        dirty = true;
+        return ret;
+    }
+
+    /** Load the cache file, the lines are "path \t algorithm \t size \t mtime \t digest". */
+    private synchronized Map<String, String[]> load() throws IOException {
+        if (cached != null) {
+            return cached;
+        }
+        Map<String, String[]> c = new ConcurrentHashMap<>();
+        if (cache.isFile()) {
+            try (BufferedReader reader = Files.newBufferedReader(cache.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] items = line.split("\t");
+                    if (items.length == 5) {
+                        c.put(items[0] + "\t" + items[1], new String[]{items[2], items[3], items[4]});
+                    }
+                }
+            }
+        }
+        cached = c;
+        return c;
+    }
+
+    /** Write the cache file into a temporary file, and rename it into place. */
+    private synchronized void save() throws IOException {
+        if (cache == null || !dirty) {
+            return;
+        }
+        File dir = cache.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile(cache.getName(), ".tmp", dir);
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, String[]> e : cached.entrySet()) {
+                    String[] v = e.getValue();
+                    writer.write(e.getKey() + "\t" + v[0] + "\t" + v[1] + "\t" + v[2]);
+                    writer.newLine();
+                }
+            }
+            Files.move(tmp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            dirty = false;
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Hash the content of <code>file</code> by <code>algorithm</code>.
+     */
+    static byte[] hash(Path file, String algorithm) throws IOException {
+        Hash hash = hash(algorithm);
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size >= MAP_THRESHOLD) {
+                for (long position = 0; position < size; position += MAP_WINDOW) {
+                    MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(MAP_WINDOW, size - position));
+                    hash.update(window);
+                }
+                // the file may grow, read the rest
+                in.position(size);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                hash.update(buffer);
+                buffer.clear();
+            }
+        }
+        return hash.finish();
+    }
+
+    /**
+     * Create an incremental hash of <code>algorithm</code>.
+     */
+    static Hash hash(String algorithm) {
+        if (algorithm.equalsIgnoreCase("CRC32")) {
+            return new ChecksumHash(new CRC32());
+        }
+        if (algorithm.equalsIgnoreCase("ADLER32")) {
+            return new ChecksumHash(new Adler32());
+        }
+        try {
+            return new DigestHash(MessageDigest.getInstance(algorithm));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOError(String.format("Unsupported algorithm: %s", algorithm));
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] ret = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            ret[2 * i] = digits[(bytes[i] >> 4) & 0xF];
+            ret[2 * i + 1] = digits[bytes[i] & 0xF];
+        }
+        return new String(ret);
+    }
+
+    /**
+     * An incremental hash, over a <code>MessageDigest</code> or a <code>Checksum</code>.
+     */
+    interface Hash {
+        /** Consume the remaining bytes of <code>buffer</code>. */
+        void update(ByteBuffer buffer);
+
+        byte[] finish();
+    }
+
+    private static final class DigestHash implements Hash {
+        private MessageDigest md;
+
+        DigestHash(MessageDigest md) {
+            this.md = md;
+        }
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            md.update(buffer);
+        }
+
+        @Override
+        public byte[] finish() {
+            return md.digest();
+        }
+    }
+
+    private static final class ChecksumHash implements Hash {
+        private Checksum checksum;
+        private byte[] scratch;
+
+        ChecksumHash(Checksum checksum) {
+            this.checksum = checksum;
+        }
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            if (buffer.hasArray()) {
+                checksum.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                buffer.position(buffer.limit());
+                return;
+            }
+            if (scratch == null) {
+                scratch = new byte[1 << 16];
+            }
+            while (buffer.hasRemaining()) {
+                int n = Math.min(scratch.length, buffer.remaining());
+                buffer.get(scratch, 0, n);
+                checksum.update(scratch, 0, n);
+            }
+        }
+
+        @Override
+        public byte[] finish() {
+            long v = checksum.getValue();
+            return new byte[]{(byte) (v >>> 24), (byte) (v >>> 16), (byte) (v >>> 8), (byte) v};
+        }
+    }
+}
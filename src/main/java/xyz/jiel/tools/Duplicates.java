@@ -0,0 +1,305 @@
+package xyz.jiel.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import xyz.jiel.exceptions.IOError;
+
+/**
+ * Find the files with the same content, created by <code>Shutil.duplicates()</code>. The
+ * files are found in stages, each stage only reads the candidates left by the previous one:
+ * <ol>
+ * <li>the files are grouped by their sizes, which needs no reads,</li>
+ * <li>the groups are split by the hash of the first and the last <code>BLOCK</code> bytes,</li>
+ * <li>the groups are split by the hash of the whole content.</li>
+ * </ol>
+ * The hashes of each stage are computed on a pool of <code>threads</code> workers. A file
+ * which is not larger than two blocks is fully read by the second stage, so it skips the third.
+ * The hard links of one file are taken as one file.
+ *
+ * <pre>
+ * Duplicates duplicates = Shutil.duplicates().threads(16).minSize(4096);
+ * List&lt;List&lt;Path&gt;&gt; groups = duplicates.find("/srv/artifacts");
+ * duplicates.link(groups).check("Cannot link the duplicates");
+ * </pre>
+ */
+public final class Duplicates {
+    /** the size of the blocks read from both ends of a file by the second stage */
+    static final int BLOCK = 64 << 10;
+
+    private int threads = 1;
+    private long minSize = 1;
+    private String algorithm = "SHA-256";
+    private Report report;
+
+    public int threads() { return threads; }
+    public Duplicates threads(int n) { threads = n; return this; }
+
+    /** Set the size from which the files are compared, the smaller files are ignored. */
+    public long minSize() { return minSize; }
+    public Duplicates minSize(long bytes) { minSize = bytes; return this; }
+
+    /** Set the algorithm of the hashes, see <code>Digester.algorithm</code>. */
+    public String algorithm() { return algorithm; }
+    public Duplicates algorithm(String a) { algorithm = a; return this; }
+
+    /**
+     * Set the report which records the files that cannot be read, they are skipped.
+     * Without a report, a <code>CompoundIOError</code> is thrown at the end.
+     */
+    public Report report() { return report; }
+    public Duplicates report(Report r) { report = r; return this; }
+
+    public List<List<Path>> find(String root) {
+        return find(new File(root));
+    }
+
+    /**
+     * Find the duplicates under <code>root</code>, the symbolic links are not followed.
+     *
+     * @param root the directory to be searched
+     * @return the groups of the files with the same content, each group has at least two
+     * files sorted by their paths, the groups are sorted by the size of the files, largest first.
+     */
+    public List<List<Path>> find(File root) {
+        Report r = report != null ? report : new Report();
+
+        /* stage 1: group by size, keep one path of each file key */
+        Map<Long, Map<Object, Path>> sizes = new HashMap<>();
+        for (Walker.Entry entry : Shutil.walk(root).report(r)) {
+            if (!entry.isFile() || entry.size() < minSize) {
+                continue;
+            }
+            Map<Object, Path> files = sizes.get(entry.size());
+            if (files == null) {
+                files = new LinkedHashMap<>();
+                sizes.put(entry.size(), files);
+            }
+            Object key = entry.attrs().fileKey();
+            if (key == null || !files.containsKey(key)) {
+                files.put(key != null ? key : entry.path(), entry.path());
+            }
+        }
+        List<List<Path>> candidates = new ArrayList<>();
+        for (Map.Entry<Long, Map<Object, Path>> e : sizes.entrySet()) {
+            if (e.getValue().size() > 1) {
+                candidates.add(new ArrayList<>(e.getValue().values()));
+            }
+        }
+        sizes = null;
+
+        ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            /* stage 2: split by the hash of both ends, stage 3: by the hash of the content */
+            List<List<Path>> partial = split(candidates, true, pool, r);
+            List<List<Path>> ret = new ArrayList<>();
+            List<List<Path>> full = new ArrayList<>();
+            for (List<Path> group : partial) {
+                (size(group) <= 2L * BLOCK ? ret : full).add(group);
+            }
+            ret.addAll(split(full, false, pool, r));
+
+            for (List<Path> group : ret) {
+                Collections.sort(group);
+            }
+            Collections.sort(ret, new Comparator<List<Path>>() {
+                @Override
+                public int compare(List<Path> a, List<Path> b) {
+                    int c = Long.compare(size(b), size(a));
+                    return c != 0 ? c : a.get(0).compareTo(b.get(0));
+                }
+            });
+            if (report == null) {
+                r.check(String.format("Cannot find the duplicates in %s", root.getPath()));
+            }
+            return ret;
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Replace the duplicates with hard links to the first file of each group. A link is
+     * created with a temporary name, then renamed over the duplicate atomically, so a
+     * duplicate is never missing. Each duplicate is compared with the first file byte for
+     * byte just before it is replaced, so neither a collision of the hashes nor a change
+     * since found replaces a different file, such files are skipped.
+     *
+     * @param groups the groups returned by <code>find</code>
+     * @return the report, the replaced files are counted as entries with the freed bytes
+     */
+    public Report link(List<List<Path>> groups) {
+        Report ret = new Report();
+        for (List<Path> group : groups) {
+            Path first = group.get(0);
+            for (Path dup : group.subList(1, group.size())) {
+                Path tmp = dup.resolveSibling(String.format(".%s.%s.tmp", dup.getFileName(), UUID.randomUUID()));
+                try {
+                    long size = Files.size(dup);
+                    if (size != Files.size(first) || !sameContent(first, dup)) {
+                        ret.skip();
+                        continue;
+                    }
+                    Files.createLink(tmp, first);
+                    Files.move(tmp, dup, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    ret.entry(size);
+                } catch (IOException | UnsupportedOperationException e) {
+                    ret.fail(dup.toString(), e);
+                    try {
+                        Files.deleteIfExists(tmp);
+                    } catch (IOException ignored) {
+                        // nothing to do
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Whether the files <code>a</code> and <code>b</code> have the same content.
+     */
+    private static boolean sameContent(Path a, Path b) throws IOException {
+        try (FileChannel x = FileChannel.open(a, StandardOpenOption.READ);
+             FileChannel y = FileChannel.open(b, StandardOpenOption.READ)) {
+            ByteBuffer bx = ByteBuffer.allocate(BLOCK);
+            ByteBuffer by = ByteBuffer.allocate(BLOCK);
+            while (true) {
+                int n = fill(x, bx);
+                if (n != fill(y, by) || !bx.equals(by)) {
+                    return false;
+                }
+                if (n < BLOCK) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /** Read the channel until the buffer is full or the end, the buffer is flipped. */
+    private static int fill(FileChannel in, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining() && in.read(buffer) != -1) {
+            // read more
+        }
+        buffer.flip();
+        return buffer.remaining();
+    }
+
+    private static long size(List<Path> group) {
+        try {
+            return Files.size(group.get(0));
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Split each group by the hashes of its files, the files which cannot be read are
+     * dropped, and the groups of one file are dropped.
+     */
+    private List<List<Path>> split(List<List<Path>> groups, final boolean partial, ExecutorService pool,
+                                   final Report r) {
+        List<Path> files = new ArrayList<>();
+        for (List<Path> group : groups) {
+            files.addAll(group);
+        }
+        List<Future<String>> futures = new ArrayList<>(files.size());
+        for (final Path file : files) {
+            Callable<String> task = new Callable<String>() {
+                @Override
+                public String call() {
+                    try {
+                        return Digester.hex(partial ? ends(file) : Digester.hash(file, algorithm));
+                    } catch (IOException e) {
+                        r.fail(file.toString(), e);
+                        return null;
+                    }
+                }
+            };
+            if (pool == null) {
+                FutureTask<String> f = new FutureTask<>(task);
+                f.run();
+                futures.add(f);
+            } else {
+                futures.add(pool.submit(task));
+            }
+        }
+
+        List<List<Path>> ret = new ArrayList<>();
+        int i = 0;
+        for (List<Path> group : groups) {
+            Map<String, List<Path>> byHash = new LinkedHashMap<>();
+            for (Path file : group) {
+                String hash = get(futures.get(i++));
+                if (hash == null) {
+                    continue;
+                }
+                List<Path> same = byHash.get(hash);
+                if (same == null) {
+                    same = new ArrayList<>();
+                    byHash.put(hash, same);
+                }
+                same.add(file);
+            }
+            for (List<Path> same : byHash.values()) {
+                if (same.size() > 1) {
+                    ret.add(same);
+                }
+            }
+        }
+        return ret;
+    }
+
+    private static String get(Future<String> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOError("Interrupted while hashing the files");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOError(String.valueOf(cause));
+        }
+    }
+
+    /**
+     * Hash the first and the last <code>BLOCK</code> bytes of <code>file</code>, the whole
+     * content if it is not larger than two blocks.
+     */
+    private byte[] ends(Path file) throws IOException {
+        Digester.Hash hash = Digester.hash(algorithm);
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK);
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = in.size();
+            read(in, buffer, 0, hash);
+            if (size > BLOCK) {
+                read(in, buffer, Math.max(BLOCK, size - BLOCK), hash);
+            }
+        }
+        return hash.finish();
+    }
+
+    private static void read(FileChannel in, ByteBuffer buffer, long position, Digester.Hash hash)
+            throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            int n = in.read(buffer, position + buffer.position());
+            if (n == -1) {
+                break;
+            }
+        }
+        buffer.flip();
+        hash.update(buffer);
+    }
+}
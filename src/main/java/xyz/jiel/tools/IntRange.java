@@ -0,0 +1,235 @@
+package xyz.jiel.tools;
+
+import java.util.*;
+
+/**
+ * An immutable arithmetic sequence of ints, returned by <code>P.range()</code>. The values are
+ * computed from <code>start</code> and <code>step</code> when they are read, so a range of any
+ * length takes a constant memory, and <code>size</code>, <code>get</code>, <code>contains</code>
+ * and <code>indexOf</code> take a constant time.
+ *
+ * <p>The loops which should not box the values use <code>nextInt()</code> of the iterator:
+ * <pre>
+ * IntRange.IntIterator it = P.range(0, 10000000).iterator();
+ * while (it.hasNext()) {
+ *     int i = it.nextInt();
+ *     ...
+ * }
+ * </pre>
+ * A range can be split into contiguous ranges by <code>split()</code>, to be handled in
+ * parallel.
+ */
+public final class IntRange extends AbstractList<Integer> implements RandomAccess {
+    private final int start;
+    private final int step;
+    private final int size;
+
+    private IntRange(int start, int step, int size) {
+        this.start = start;
+        this.step = step;
+        this.size = size;
+    }
+
+    /**
+     * Create the range from <code>start</code> to <code>end</code> exclusively, it is empty if
+     * <code>step</code> is 0 or goes away from <code>end</code>. Only the first
+     * <code>Integer.MAX_VALUE</code> values are kept.
+     */
+    static IntRange of(int start, int end, int step) {
+        long n = 0;
+        if (step > 0 && start < end) {
+            n = ((long) end - start + step - 1) / step;
+        } else if (step < 0 && start > end) {
+            n = ((long) start - end - step - 1) / -(long) step;
+        }
+        return new IntRange(start, step, (int) Math.min(n, Integer.MAX_VALUE));
+    }
+
+    public int start() { return start; }
+    public int step() { return step; }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Integer get(int index) {
+        return getInt(index);
+    }
+
+    /** Get the value at <code>index</code> without boxing it. */
+    public int getInt(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(String.format("Index: %d, Size: %d", index, size));
+        }
+        return start + index * step;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return indexOf(o) != -1;
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        if (!(o instanceof Integer) || size == 0) {
+            return -1;
+        }
+        long offset = (long) (Integer) o - start;
+        if (offset % step != 0) {
+            return -1;
+        }
+        long index = offset / step;
+        return index >= 0 && index < size ? (int) index : -1;
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        // the values are distinct
+        return indexOf(o);
+    }
+
+    @Override
+    public IntIterator iterator() {
+        return new IntIterator(0);
+    }
+
+    @Override
+    public IntIterator listIterator() {
+        return new IntIterator(0);
+    }
+
+    @Override
+    public IntIterator listIterator(int index) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException(String.format("Index: %d, Size: %d", index, size));
+        }
+        return new IntIterator(index);
+    }
+
+    @Override
+    public IntRange subList(int fromIndex, int toIndex) {
+        if (fromIndex < 0 || toIndex > size || fromIndex > toIndex) {
+            throw new IndexOutOfBoundsException(String.format("fromIndex: %d, toIndex: %d, Size: %d",
+                    fromIndex, toIndex, size));
+        }
+        return new IntRange(start + fromIndex * step, step, toIndex - fromIndex);
+    }
+
+    /**
+     * Split this range into at most <code>parts</code> contiguous ranges of almost the same size.
+     *
+     * @param parts the number of the ranges, e.g. the number of the workers
+     * @return the nonempty ranges in order, which cover this range
+     */
+    public List<IntRange> split(int parts) {
+        List<IntRange> ret = new ArrayList<>();
+        int n = Math.max(1, Math.min(parts, size));
+        for (int i = 0; i < n && size > 0; i++) {
+            int from = (int) ((long) size * i / n);
+            int to = (int) ((long) size * (i + 1) / n);
+            ret.add(subList(from, to));
+        }
+        return ret;
+    }
+
+    /** Copy the values into an array of ints. */
+    public int[] toIntArray() {
+        int[] ret = new int[size];
+        int v = start;
+        for (int i = 0; i < size; i++, v += step) {
+            ret[i] = v;
+        }
+        return ret;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = 1;
+        int v = start;
+        for (int i = 0; i < size; i++, v += step) {
+            h = 31 * h + v;
+        }
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof IntRange) {
+            IntRange r = (IntRange) o;
+            return size == r.size && (size == 0 || start == r.start && (size == 1 || step == r.step));
+        }
+        return super.equals(o);
+    }
+
+    /**
+     * The iterator of the values, <code>nextInt()</code> returns a value without boxing it.
+     */
+    public final class IntIterator implements ListIterator<Integer> {
+        private int index;
+
+        private IntIterator(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < size;
+        }
+
+        public int nextInt() {
+            if (index >= size) {
+                throw new NoSuchElementException();
+            }
+            return start + index++ * step;
+        }
+
+        @Override
+        public Integer next() {
+            return nextInt();
+        }
+
+        @Override
+        public boolean hasPrevious() {
+            return index > 0;
+        }
+
+        public int previousInt() {
+            if (index <= 0) {
+                throw new NoSuchElementException();
+            }
+            return start + --index * step;
+        }
+
+        @Override
+        public Integer previous() {
+            return previousInt();
+        }
+
+        @Override
+        public int nextIndex() {
+            return index;
+        }
+
+        @Override
+        public int previousIndex() {
+            return index - 1;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void set(Integer value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void add(Integer value) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package xyz.jiel.tools;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import xyz.jiel.exceptions.CancelledError;
+
+/**
+ * Watch and control a running operation of <code>Shutil</code>. It counts the processed bytes
+ * and files, keeps the current path, and computes the average and the instantaneous throughput.
+ * It can be read from any thread while the operation runs, e.g. to alert on a stalled copy.
+ *
+ * <p>An operation stops soon after <code>cancel()</code> is called, and throws a
+ * <code>CancelledError</code>. If <code>rateLimit</code> is set, the threads of the operation
+ * sleep to keep the throughput under it. If a <code>listener</code> is set, it is called on
+ * one of the threads of the operation at most every <code>interval</code> milliseconds.
+ *
+ * <pre>
+ * Monitor monitor = new Monitor().rateLimit(100 &lt;&lt; 20).listener(new Monitor.Listener() {
+ *     public void progress(Monitor m) {
+ *         System.out.printf("%s %d bytes %.1f MB/s%n", m.current(), m.bytes(), m.rate() / 1e6);
+ *     }
+ * });
+ * Shutil.copier().monitor(monitor).copytree(src, dst);
+ * </pre>
+ */
+public final class Monitor {
+    /** the longest sleep in nanoseconds under the rate limit, before the cancellation is checked */
+    private static final long SLEEP_STEP = 50L * 1000000;
+
+    public interface Listener {
+        void progress(Monitor m);
+    }
+
+    private Listener listener;
+    private long interval = 1000;
+    private long rateLimit = 0;
+
+    private AtomicLong bytes = new AtomicLong();
+    private AtomicLong files = new AtomicLong();
+    private volatile String current;
+    private volatile boolean cancelled;
+
+    private final long start = System.nanoTime();
+    private volatile long lastProgress = start;
+
+    /** the time and the bytes of the last call of the listener */
+    private long lastReport = start;
+    private long lastReportBytes;
+    private volatile double rate;
+
+    /** the time at which the next bytes may be handled under the rate limit */
+    private long nextSlot = start;
+
+    public Listener listener() { return listener; }
+    public Monitor listener(Listener l) { listener = l; return this; }
+
+    /** Set the minimum milliseconds between two calls of the listener. */
+    public long interval() { return interval; }
+    public Monitor interval(long ms) { interval = ms; return this; }
+
+    /** Set the maximum bytes per second, 0 means no limit. */
+    public long rateLimit() { return rateLimit; }
+    public Monitor rateLimit(long bytesPerSecond) { rateLimit = bytesPerSecond; return this; }
+
+    /** the number of the processed bytes */
+    public long bytes() { return bytes.get(); }
+
+    /** the number of the processed files */
+    public long files() { return files.get(); }
+
+    /** the path being processed, or null if not started */
+    public String current() { return current; }
+
+    /** the milliseconds since this monitor is created */
+    public long elapsed() {
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    /** the milliseconds since the last processed bytes or files */
+    public long idle() {
+        return (System.nanoTime() - lastProgress) / 1000000;
+    }
+
+    /** the average bytes per second */
+    public double throughput() {
+        long nanos = System.nanoTime() - start;
+        return nanos <= 0 ? 0 : bytes() * 1e9 / nanos;
+    }
+
+    /** the bytes per second in the last interval */
+    public double rate() {
+        return rate;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean cancelled() {
+        return cancelled;
+    }
+
+    /** Start to process <code>path</code>. */
+    void file(String path) {
+        check();
+        current = path;
+    }
+
+    /** A file is processed. */
+    void fileDone() {
+        files.incrementAndGet();
+        progress();
+    }
+
+    /** <code>n</code> bytes are processed without any I/O of data, e.g. by a link. */
+    void add(long n) {
+        bytes.addAndGet(n);
+        progress();
+    }
+
+    /** <code>n</code> bytes are read and written, sleep if exceeding the rate limit. */
+    void bytes(long n) {
+        check();
+        bytes.addAndGet(n);
+        progress();
+        if (rateLimit > 0) {
+            throttle(n);
+        }
+    }
+
+    /** Throw a <code>CancelledError</code> if cancelled. */
+    void check() {
+        if (cancelled) {
+            throw new CancelledError("The operation is cancelled");
+        }
+    }
+
+    private void throttle(long n) {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            nextSlot = Math.max(nextSlot, now) + (long) (n * 1e9 / rateLimit);
+            wait = nextSlot - now;
+        }
+        // sleep in steps, so a cancel() stops the wait of a large chunk
+        long end = System.nanoTime() + wait;
+        try {
+            while (wait > 0 && !cancelled) {
+                long step = Math.min(wait, SLEEP_STEP);
+                Thread.sleep(step / 1000000, (int) (step % 1000000));
+                wait = end - System.nanoTime();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+        }
+        check();
+    }
+
+    private void progress() {
+        long now = System.nanoTime();
+        lastProgress = now;
+        if (now - lastReport < interval * 1000000) {
+            return;
+        }
+
+        synchronized (this) {
+            if (now - lastReport < interval * 1000000) {
+                return;
+            }
+            long total = bytes();
+            rate = (total - lastReportBytes) * 1e9 / (now - lastReport);
+            lastReport = now;
+            lastReportBytes = total;
+        }
+        if (listener != null) {
+            listener.progress(this);
+        }
+    }
+}
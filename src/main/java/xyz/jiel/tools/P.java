@@ -1,143 +1,553 @@
 package xyz.jiel.tools;
 
+import java.io.Closeable;
 import java.io.PrintStream;
 import java.lang.reflect.Array;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class P{
-    public static List<Integer> range(int end){
+    public static IntRange range(int end){
         return P.range(0, end, 1);
     }
 
-    public static List<Integer> range(int start, int end){
+    public static IntRange range(int start, int end){
         return P.range(start, end, 1);
     }
 
-    public static List<Integer> range(int start, int end, int step){
-        if (step == 0 || (start < end && step < 0))
-            return new ArrayList<>();
-        List<Integer> rets = new ArrayList<>();
-        int sign = 1;
-        if (step < 0)
-            sign = -1;
-        for(int i = start; i * sign < end * sign; i += step){
-            rets.add(i);
-        }
-        return rets;
+    /**
+     * Get the ints from <code>start</code> to <code>end</code> exclusively by
+     * <code>step</code>, as Python's "range". The range is lazy and immutable.
+     *
+     * @see IntRange
+     */
+    public static IntRange range(int start, int end, int step){
+        return IntRange.of(start, end, step);
     }
 
     public static Printer printer(){
         return new Printer();
     }
 
-    public static final class Printer{
+    /**
+     * Print values like Python's "print". The values are formatted into a buffer, which is
+     * reused, the primitive arrays are formatted without boxing, and the buffer is written to
+     * the stream once per call, or in chunks of <code>CHUNK</code> characters for the large
+     * values. In the <code>buffered</code> mode, the buffer is only written when it is full or
+     * by <code>flush()</code>, so many small prints share one write.
+     *
+     * <p>A printer can be shared by threads, each print is written as a whole unless it
+     * is larger than a chunk in the sync mode.
+     *
+     * <p>In the <code>async</code> mode, a print only formats the values on the calling thread,
+     * without any lock, and puts the text into a bounded queue. A background thread writes
+     * the queued texts in batches, and flushes the stream after each batch. When the queue is
+     * full, a print waits, is dropped, or is sampled according to the <code>Backpressure</code>.
+     * The background thread is a daemon, so the queued output is lost if the program exits
+     * before <code>flush()</code> or <code>close()</code> is called.
+     *
+     * <pre>
+     * P.Printer log = P.printer().async(8192, P.Backpressure.DROP);
+     * log.print("served", path, millis);
+     * ...
+     * log.close();
+     * </pre>
+     */
+    public static final class Printer implements Closeable{
+        /** the number of characters written to the stream at once */
+        static final int CHUNK = 1 << 16;
+
         private String sep = " ";
         private PrintStream stream = System.out;
         private String end = "\n";
         private boolean flush = false;
+        private boolean buffered = false;
+        private int sample = 10;
+
+        /** the buffer of the sync mode, guarded by the lock */
+        private StringBuilder buffer = new StringBuilder(256);
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /** the writer of the async mode, null in the sync mode */
+        private volatile Writer writer;
+        private AtomicLong dropped = new AtomicLong();
 
         public Printer sep(String s){ sep = s; return this; }
         public Printer stream(PrintStream s){ stream = s; return this; }
         public Printer end(String e) { end = e; return this; }
         public Printer flush(boolean b) { flush = b; return this; }
 
-        public void print(Collection<?> c){
-            printCollection(c);
-            stream.print(end);
+        /**
+         * Set whether the output is kept in the buffer until it is full, or
+         * <code>flush()</code> is called.
+         */
+        public Printer buffered(boolean b) { buffered = b; return this; }
+
+        /** Set that one of <code>n</code> prints is kept when sampling, see <code>Backpressure.SAMPLE</code>. */
+        public Printer sample(int n) { sample = Math.max(1, n); return this; }
+
+        /**
+         * Switch to the async mode, start the background writer. It should be called
+         * after the stream is set.
+         *
+         * @param capacity the number of the prints which can be queued
+         * @param backpressure what a print does when the queue is full
+         */
+        public Printer async(int capacity, Backpressure backpressure){
+            lock.lock();
+            try{
+                if(writer != null){
+                    throw new IllegalStateException("The printer is already async");
+                }
+                drain();
+                Writer w = new Writer(capacity, backpressure);
+                w.start();
+                writer = w;
+            } finally {
+                lock.unlock();
+            }
+            return this;
         }
 
-        public void print(Map<?, ?> m){
-            printMap(m);
-            stream.print(end);
+        /** The number of the prints which are dropped in the async mode. */
+        public long dropped(){
+            return dropped.get();
         }
 
-        private void intelligentPrint(Object obj) {
-            if(obj == null){
-                stream.print("null");
-            }else if(obj.getClass().isArray()){
-                printArray(getArray(obj));
-            } else if(obj instanceof Collection){
-                printCollection((Collection)obj);
-            } else if(obj instanceof Map){
-                printMap((Map)obj);
-            } else if(obj instanceof Map.Entry){
-                Map.Entry<?, ?> entry = (Map.Entry<?, ?>)obj;
-                stream.print(entry.getKey());
-                stream.print(": ");
-                stream.print(entry.getValue());
-            } else {
-                stream.print(obj);
+        public void print(Collection<?> c){
+            StringBuilder b = begin();
+            try{
+                printCollection(b, c);
+                b.append(end);
+            } finally {
+                commit(b);
+            }
+        }
+
+        public void print(Map<?, ?> m){
+            StringBuilder b = begin();
+            try{
+                printMap(b, m);
+                b.append(end);
+            } finally {
+                commit(b);
             }
         }
 
         public void print(Object... values){
-            int len = values.length;
-            for(int i = 0; i < len; i++){
-                Object obj = values[i];
-                intelligentPrint(obj);
-                if(i != len-1){
-                    stream.print(sep);
+            StringBuilder b = begin();
+            try{
+                int len = values.length;
+                for(int i = 0; i < len; i++){
+                    intelligentPrint(b, values[i]);
+                    if(i != len-1){
+                        b.append(sep);
+                    }
                 }
+                b.append(end);
+            } finally {
+                commit(b);
+            }
+        }
+
+        public void print(Iterator iterator){
+            StringBuilder b = begin();
+            try{
+                _print(b, sep, end, iterator);
+            } finally {
+                commit(b);
+            }
+        }
 
+        /**
+         * Write the buffered or the queued output to the stream, and flush the stream.
+         * In the async mode, it waits until the prints queued before are written.
+         */
+        public void flush(){
+            Writer w = writer;
+            if(w != null && w.sync()){
+                return;
             }
-            stream.print(end);
-            if(flush){
+            lock.lock();
+            try{
+                drain();
                 stream.flush();
+            } finally {
+                lock.unlock();
             }
         }
 
-        public void print(Iterator iterator){
-            _print(sep, end, iterator);
+        /**
+         * Write the remaining output, and stop the background writer of the async mode.
+         * The printer goes back to the sync mode, the stream is not closed.
+         */
+        @Override
+        public void close(){
+            Writer w;
+            lock.lock();
+            try{
+                w = writer;
+                writer = null;
+            } finally {
+                lock.unlock();
+            }
+            if(w != null){
+                w.finish();
+            }
+            flush();
+        }
+
+        /** the buffers of the threads which format the values in the async mode */
+        private ThreadLocal<StringBuilder> local = new ThreadLocal<StringBuilder>(){
+            @Override
+            protected StringBuilder initialValue(){
+                return new StringBuilder(256);
+            }
+        };
+
+        /**
+         * Get the buffer for a print, the shared buffer is locked in the sync mode.
+         */
+        private StringBuilder begin(){
+            if(writer != null){
+                return local.get();
+            }
+            lock.lock();
+            return buffer;
+        }
+
+        /** End a print, queue or write it. */
+        private void commit(StringBuilder b){
+            if(b != buffer){
+                String text = b.toString();
+                b.setLength(0);
+                if(b.capacity() > CHUNK * 4){
+                    local.remove();
+                }
+                Writer w = writer;
+                if(w != null){
+                    w.put(text);
+                } else {
+                    // closed while formatting
+                    write(text);
+                }
+                return;
+            }
+            try{
+                if(!buffered || buffer.length() >= CHUNK){
+                    drain();
+                }
+                if(flush){
+                    drain();
+                    stream.flush();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Write a text of the async mode to the stream directly, after the writer is closed. */
+        private void write(String text){
+            lock.lock();
+            try{
+                stream.print(text);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void drain(){
+            if(buffer.length() > 0){
+                stream.print(buffer);
+                buffer.setLength(0);
+            }
+            if(buffer.capacity() > CHUNK * 4){
+                // do not keep the memory of a huge value
+                buffer = new StringBuilder(CHUNK);
+            }
         }
 
-        private static Object[] getArray(Object val){
-            if(val instanceof Object[]){
-                return (Object[]) val;
+        /** Write a full chunk of the shared buffer while formatting a large value. */
+        private void spill(StringBuilder b){
+            if(b == buffer && b.length() >= CHUNK){
+                stream.print(b);
+                b.setLength(0);
             }
-            int len = Array.getLength(val);
-            Object[] obj = new Object[len];
-            for(int i = 0; i < len; i++){
-                obj[i] = Array.get(val, i);
+        }
+
+        private void intelligentPrint(StringBuilder b, Object obj) {
+            if(obj == null){
+                b.append("null");
+            }else if(obj.getClass().isArray()){
+                printArray(b, obj);
+            } else if(obj instanceof Collection){
+                printCollection(b, (Collection)obj);
+            } else if(obj instanceof Map){
+                printMap(b, (Map)obj);
+            } else if(obj instanceof Map.Entry){
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>)obj;
+                b.append(entry.getKey());
+                b.append(": ");
+                b.append(entry.getValue());
+            } else {
+                b.append(obj);
             }
-            return obj;
         }
 
-        private void _print(String s, String e, Iterator iterator){
+        private void _print(StringBuilder b, String s, String e, Iterator iterator){
             while(iterator.hasNext()){
                 Object obj = iterator.next();
-                intelligentPrint(obj);
+                intelligentPrint(b, obj);
                 if(iterator.hasNext()){
-                    stream.print(s);
+                    b.append(s);
                 }
+                spill(b);
             }
-            stream.print(e);
-            if(flush){
-                stream.flush();
-            }
+            b.append(e);
         }
 
-        private void printCollection(Collection<?> c){
+        private void printCollection(StringBuilder b, Collection<?> c){
             if(c instanceof List){
-                stream.print('[');
-                _print(", ", "", c.iterator());
-                stream.print(']');
-                
+                b.append('[');
+                if(c instanceof RandomAccess){
+                    List<?> list = (List<?>) c;
+                    for(int i = 0, n = list.size(); i < n; i++){
+                        if(i > 0){
+                            b.append(", ");
+                        }
+                        intelligentPrint(b, list.get(i));
+                        spill(b);
+                    }
+                } else {
+                    _print(b, ", ", "", c.iterator());
+                }
+                b.append(']');
+
             } else if(c instanceof Set){
-                stream.print('{');
-                _print(", ", "", c.iterator());
-                stream.print('}');
+                b.append('{');
+                _print(b, ", ", "", c.iterator());
+                b.append('}');
+            }
+        }
+
+        private void printMap(StringBuilder b, Map<?, ?> m){
+            b.append('{');
+            _print(b, ", ", "", m.entrySet().iterator());
+            b.append('}');
+        }
+
+        /**
+         * Print an array as a list, the arrays of primitives are read without boxing.
+         */
+        private void printArray(StringBuilder b, Object array){
+            b.append('[');
+            if(array instanceof Object[]){
+                Object[] a = (Object[]) array;
+                for(int i = 0; i < a.length; i++){
+                    if(i > 0) b.append(", ");
+                    intelligentPrint(b, a[i]);
+                    spill(b);
+                }
+            } else if(array instanceof int[]){
+                int[] a = (int[]) array;
+                for(int i = 0; i < a.length; i++){
+                    if(i > 0) b.append(", ");
+                    b.append(a[i]);
+                    spill(b);
+                }
+            } else if(array instanceof long[]){
+                long[] a = (long[]) array;
+                for(int i = 0; i < a.length; i++){
+                    if(i > 0) b.append(", ");
+                    b.append(a[i]);
+                    spill(b);
+                }
+            } else if(array instanceof double[]){
+                double[] a = (double[]) array;
+                for(int i = 0; i < a.length; i++){
+                    if(i > 0) b.append(", ");
+                    b.append(a[i]);
+                    spill(b);
+                }
+            } else if(array instanceof char[]){
+                char[] a = (char[]) array;
+                for(int i = 0; i < a.length; i++){
+                    if(i > 0) b.append(", ");
+                    b.append(a[i]);
+                    spill(b);
+                }
+            } else {
+                // byte[], short[], float[] and boolean[] are rare, read them reflectively
+                int len = Array.getLength(array);
+                for(int i = 0; i < len; i++){
+                    if(i > 0) b.append(", ");
+                    b.append(Array.get(array, i));
+                    spill(b);
+                }
             }
+            b.append(']');
         }
 
-        private void printMap(Map<?, ?> m){
-            stream.print('{');
-            _print(", ", "", m.entrySet().iterator());
-            stream.print('}');
+        /**
+         * The background writer of the async mode. The queue holds the texts, and the
+         * markers of <code>flush()</code> and <code>close()</code>.
+         */
+        private final class Writer extends Thread{
+            private BlockingQueue<Object> queue;
+            private Backpressure backpressure;
+            private AtomicLong full = new AtomicLong();
+            /** set before the stop marker is queued, the later prints are not queued */
+            private volatile boolean closed;
+            /** the number of the prints and flushes which are being queued */
+            private AtomicInteger active = new AtomicInteger();
+
+            Writer(int capacity, Backpressure backpressure){
+                super("P.Printer-writer");
+                setDaemon(true);
+                this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+                this.backpressure = backpressure;
+            }
+
+            void put(String text){
+                active.incrementAndGet();
+                try{
+                    if(closed){
+                        write(text);
+                    } else {
+                        queue(text);
+                    }
+                } finally {
+                    active.decrementAndGet();
+                }
+            }
+
+            private void queue(String text){
+                if(queue.offer(text)){
+                    return;
+                }
+                if(backpressure == Backpressure.DROP
+                        || backpressure == Backpressure.SAMPLE && full.incrementAndGet() % sample != 0){
+                    dropped.incrementAndGet();
+                    return;
+                }
+                try{
+                    queue.put(text);
+                } catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    dropped.incrementAndGet();
+                }
+            }
+
+            /**
+             * Wait until the texts queued before are written and flushed.
+             *
+             * @return false if the writer is closed, the stream should be flushed directly
+             */
+            boolean sync(){
+                active.incrementAndGet();
+                try{
+                    if(closed){
+                        return false;
+                    }
+                    await(false);
+                    return true;
+                } finally {
+                    active.decrementAndGet();
+                }
+            }
+
+            /**
+             * Stop the writer after the queued texts are written. A print which saw the
+             * writer open is queued before the stop marker, since the writer keeps taking
+             * the texts until then, a print which sees it closed writes to the stream itself.
+             */
+            void finish(){
+                closed = true;
+                while(active.get() > 0){
+                    Thread.yield();
+                }
+                await(true);
+            }
+
+            /**
+             * Wait until the texts queued before are written and flushed.
+             *
+             * @param stop whether the writer stops after them
+             */
+            void await(boolean stop){
+                Marker marker = new Marker(stop);
+                try{
+                    queue.put(marker);
+                    marker.done.await();
+                    if(stop){
+                        join();
+                    }
+                } catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void run(){
+                StringBuilder batch = new StringBuilder(CHUNK);
+                List<Object> items = new ArrayList<>();
+                while(true){
+                    try{
+                        items.add(queue.take());
+                    } catch (InterruptedException e){
+                        return;
+                    }
+                    queue.drainTo(items);
+                    for(Object item : items){
+                        if(item instanceof String){
+                            batch.append((String) item);
+                            if(batch.length() >= CHUNK){
+                                stream.print(batch);
+                                batch.setLength(0);
+                            }
+                            continue;
+                        }
+                        stream.print(batch);
+                        batch.setLength(0);
+                        stream.flush();
+                        Marker marker = (Marker) item;
+                        marker.done.countDown();
+                        if(marker.stop){
+                            return;
+                        }
+                    }
+                    items.clear();
+                    if(batch.length() > 0){
+                        stream.print(batch);
+                        batch.setLength(0);
+                    }
+                    stream.flush();
+                }
+            }
         }
 
-        private void printArray(Object[] array){
-            printCollection(Arrays.asList(array));
+        private static final class Marker{
+            private boolean stop;
+            private CountDownLatch done = new CountDownLatch(1);
+
+            Marker(boolean stop){
+                this.stop = stop;
+            }
         }
+    }
 
+    /**
+     * What a print does when the queue of an async printer is full.
+     */
+    public enum Backpressure{
+        /** wait until the queue has room */
+        BLOCK,
+        /** drop the print */
+        DROP,
+        /** drop the print, except one of every <code>sample</code> prints, which waits */
+        SAMPLE
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,177 @@
+package xyz.jiel.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A gzip stream which compresses blocks of the input in parallel, as pigz does. The input is
+ * cut into blocks of <code>blockSize</code> bytes, each block is compressed into a raw deflate
+ * stream ended by a sync flush, with the last 32 KB of the previous block as the dictionary.
+ * The compressed blocks are joined in order into one gzip member, which can be read by any
+ * gzip reader. The CRC32 of the input is computed on the writing thread.
+ */
+final class ParallelGzipOutputStream extends FilterOutputStream {
+    private static final int DICTIONARY = 32 << 10;
+
+    private ExecutorService pool;
+    private int level;
+    private int blockSize;
+
+    /** the compressed blocks being compressed, in order, at most <code>2 * threads</code> */
+    private Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private int maxPending;
+
+    private byte[] block;
+    private int used;
+    private byte[] dictionary;
+
+    private CRC32 crc = new CRC32();
+    private long size;
+    private boolean closed;
+
+    /**
+     * @param out the stream which the gzip data is written to
+     * @param pool the workers, or null to compress on the writing thread
+     * @param threads the number of the workers
+     * @param level the level of the compression, see <code>Deflater</code>
+     * @param blockSize the number of bytes of each block, not less than 32 KB
+     */
+    ParallelGzipOutputStream(OutputStream out, ExecutorService pool, int threads, int level, int blockSize)
+            throws IOException {
+        super(out);
+        this.pool = pool;
+        this.level = level;
+        this.blockSize = blockSize;
+        this.maxPending = Math.max(1, threads * 2);
+        this.block = new byte[blockSize];
+        out.write(new byte[]{0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff});
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        crc.update(b, off, len);
+        size += len;
+        while (len > 0) {
+            int n = Math.min(len, blockSize - used);
+            System.arraycopy(b, off, block, used, n);
+            used += n;
+            off += n;
+            len -= n;
+            if (used == blockSize) {
+                submit(false);
+            }
+        }
+    }
+
+    /** Write the compressed blocks, the last partial block is compressed on close. */
+    @Override
+    public void flush() throws IOException {
+        while (!pending.isEmpty()) {
+            writeBlock();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            submit(true);
+            while (!pending.isEmpty()) {
+                writeBlock();
+            }
+            long v = crc.getValue();
+            out.write(new byte[]{
+                    (byte) v, (byte) (v >>> 8), (byte) (v >>> 16), (byte) (v >>> 24),
+                    (byte) size, (byte) (size >>> 8), (byte) (size >>> 16), (byte) (size >>> 24)});
+        } finally {
+            for (Future<byte[]> f : pending) {
+                f.cancel(true);
+            }
+            out.close();
+        }
+    }
+
+    private void submit(boolean last) throws IOException {
+        final byte[] input = block;
+        final int length = used;
+        final byte[] dict = dictionary;
+        final boolean finish = last;
+        Callable<byte[]> task = new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return deflate(input, length, dict, finish);
+            }
+        };
+
+        dictionary = length >= DICTIONARY ? Arrays.copyOfRange(input, length - DICTIONARY, length) : null;
+        block = new byte[blockSize];
+        used = 0;
+
+        if (pool == null) {
+            out.write(deflate(input, length, dict, finish));
+            return;
+        }
+        if (pending.size() >= maxPending) {
+            writeBlock();
+        }
+        pending.add(pool.submit(task));
+    }
+
+    private void writeBlock() throws IOException {
+        try {
+            out.write(pending.poll().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private byte[] deflate(byte[] input, int length, byte[] dict, boolean finish) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dict != null) {
+                deflater.setDictionary(dict);
+            }
+            deflater.setInput(input, 0, length);
+            ByteArrayOutputStream ret = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[64 << 10];
+            if (finish) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    ret.write(buffer, 0, n);
+                }
+            } else {
+                // a sync flush ends the block on a byte boundary, so the blocks can be joined
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    ret.write(buffer, 0, n);
+                } while (n == buffer.length);
+            }
+            return ret.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package xyz.jiel.tools;
+
+import java.util.concurrent.*;
+
+import xyz.jiel.exceptions.IOError;
+
+/**
+ * The worker pools shared by the tools which handle the files of a tree in parallel.
+ */
+final class Pools {
+    private Pools() {}
+
+    /**
+     * Create a pool of <code>threads</code> workers with a queue of <code>capacity</code>
+     * tasks. When the queue is full, the submitting thread runs the task by itself, which
+     * bounds the pending tasks while a tree is walked.
+     */
+    static ThreadPoolExecutor bounded(int threads, int capacity) {
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(capacity), new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Shut down the <code>pools</code> and wait for all their tasks. If interrupted, the
+     * pools are stopped, and an <code>IOError</code> is thrown.
+     *
+     * @param doing what the tasks do, for the message, e.g. "hashing the files"
+     */
+    static void await(String doing, ThreadPoolExecutor... pools) {
+        for (ThreadPoolExecutor pool : pools) {
+            pool.shutdown();
+        }
+        try {
+            for (ThreadPoolExecutor pool : pools) {
+                while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+                    // keep waiting
+                }
+            }
+        } catch (InterruptedException e) {
+            for (ThreadPoolExecutor pool : pools) {
+                pool.shutdownNow();
+            }
+            Thread.currentThread().interrupt();
+            throw new IOError(String.format("Interrupted while %s", doing));
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package xyz.jiel.tools;
+
+import java.nio.file.FileSystemException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import xyz.jiel.exceptions.CompoundIOError;
+
+/**
+ * The result of an operation on many files, which goes on when some files fail.
+ * It counts the handled entries and bytes, and keeps the error messages of the
+ * failed entries keyed by their paths. It is safe to be updated by many threads.
+ */
+public final class Report {
+    private AtomicLong entries = new AtomicLong();
+    private AtomicLong bytes = new AtomicLong();
+    private AtomicLong skipped = new AtomicLong();
+    private AtomicLong deleted = new AtomicLong();
+    private Map<String, String> failures = new ConcurrentSkipListMap<>();
+
+    /** the number of the handled entries */
+    public long entries() { return entries.get(); }
+
+    /** the number of the handled bytes */
+    public long bytes() { return bytes.get(); }
+
+    /** the number of the entries which are up to date and skipped */
+    public long skipped() { return skipped.get(); }
+
+    /** the number of the extraneous entries which are deleted */
+    public long deleted() { return deleted.get(); }
+
+    /** the error messages keyed by the paths of the failed entries, sorted by the paths */
+    public Map<String, String> failures() { return failures; }
+
+    public boolean ok() { return failures.isEmpty(); }
+
+    void entry(long n) {
+        entries.incrementAndGet();
+        bytes.addAndGet(n);
+    }
+
+    void skip() {
+        skipped.incrementAndGet();
+    }
+
+    void delete() {
+        deleted.incrementAndGet();
+    }
+
+    void fail(String path, Exception e) {
+        // the message of a FileSystemException is only the path, keep its type
+        failures.put(path, e instanceof FileSystemException ? e.toString() : String.valueOf(e.getMessage()));
+    }
+
+    /**
+     * Throw the failures as a <code>CompoundIOError</code>, if there are any.
+     *
+     * @param message what the operation is
+     */
+    public void check(String message) {
+        if (failures.isEmpty())
+            return;
+
+        Map.Entry<String, String> first = failures.entrySet().iterator().next();
+        throw new CompoundIOError(String.format("%s, %d files failed, the first is %s: %s",
+                message, failures.size(), first.getKey(), first.getValue()), failures);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Report(entries=%d, bytes=%d, skipped=%d, deleted=%d, failures=%d)",
+                entries(), bytes(), skipped(), deleted(), failures.size());
+    }
+}
@@ -1,11 +1,38 @@
 package xyz.jiel.tools;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import xyz.jiel.exceptions.*;
 import xyz.jiel.exceptions.IOError;
 
 public class Shutil{
+    /** the size of the direct buffer used when the kernel cannot transfer the bytes */
+    static final int BUFFER_SIZE = 1 << 20;
+
+    /** the size of the chunks transferred at once, when the copy is monitored */
+    private static final long TRANSFER_CHUNK = 8 << 20;
+
+    /** the size of the blocks checked for zeros when copying a sparse file */
+    private static final int SPARSE_BLOCK = 4096;
+
+    private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
     public static void copyfile(String src, String dst){
         File srcFile = new File(src);
         File dstFile = new File(dst);
@@ -20,44 +47,230 @@ public class Shutil{
     *
     * @param src the file to be copied
     * @param dst the copied file of <code>src</code>
+    * @see Copier#copyfile(File, File)
     */
     public static void copyfile(File src, File dst) {
-        if(!src.isFile()) {
-            throw new FileNotFoundError(
-                String.format("File src does not exist or is not a file: %s", src.getPath())
-            );
-        }
+        copier().copyfile(src, dst);
+    }
 
-        if(dst.isDirectory()) {
-            throw new FileNotFoundError(
-                String.format("Except a file, but dst is a directory: %s", dst.getPath())
-            );
+    /**
+    * Copy the content of file <code>src</code> to file <code>dst</code> without checking them,
+    * <code>dst</code> is created or truncated. The copied bytes are counted by the
+    * <code>monitor</code>, which may be null.
+    */
+    static void copydata(File src, File dst, Monitor monitor) throws IOException {
+        try(FileChannel in = new FileInputStream(src).getChannel();
+            FileChannel out = new FileOutputStream(dst).getChannel()){
+            transfer(in, out, monitor);
         }
+    }
 
+    /**
+    * Copy the content of file <code>src</code> to file <code>dst</code> durably, and hash the
+    * content in the same pass. The content is written to a temporary file beside
+    * <code>dst</code>, which is synced to the disk, and then renamed to <code>dst</code>
+    * atomically, so <code>dst</code> is either the old file or the whole new one. The copy gets
+    * the permissions of <code>src</code>. The directory of <code>dst</code> is not synced, the
+    * caller syncs it once for all its files.
+    *
+    * @return the digest of the content by <code>algorithm</code>
+    */
+    static byte[] copydurable(File src, File dst, String algorithm, Monitor monitor) throws IOException {
+        Path target = dst.toPath();
+        Path tmp = target.resolveSibling(String.format(".%s.%s.tmp", target.getFileName(), UUID.randomUUID()));
+        Digester.Hash hash = Digester.hash(algorithm);
+        try(FileChannel in = FileChannel.open(src.toPath(), StandardOpenOption.READ);
+            FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)){
+            ByteBuffer buffer = BUFFER.get();
+            buffer.clear();
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                if (monitor != null) {
+                    monitor.bytes(buffer.remaining());
+                }
+                hash.update(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+            }
+            // the mode of the published file does not depend on the umask
+            try {
+                Files.setPosixFilePermissions(tmp, Files.getPosixFilePermissions(src.toPath()));
+            } catch (UnsupportedOperationException e) {
+                // e.g. Windows
+            }
+            out.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
         try {
-            // try to create dst, whether it exists or not.
-            dst.createNewFile();
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException e) {
-            // the path of dst contains at least one does not existed directory.
-            throw new IOError(
-                String.format("Cannot create file dst, maybe the path contains unexisted directories: %s", dst.getPath())
-            );
+            Files.deleteIfExists(tmp);
+            throw e;
         }
+        return hash.finish();
+    }
+
+    /**
+    * Sync the entries of a directory to the disk, so the files renamed into it survive
+    * a crash. It is ignored on the platforms which cannot open a directory.
+    */
+    static void syncdir(Path dir) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(dir, StandardOpenOption.READ);
+        } catch (AccessDeniedException e) {
+            // e.g. Windows, which syncs the directories by itself
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
 
+    /**
+    * Copy the content of file <code>src</code> to file <code>dst</code> without checking them,
+    * and keep the holes of a sparse file. Java cannot seek to the data and the holes of a file
+    * (SEEK_DATA/SEEK_HOLE), so the blocks of zeros are detected while copying, and are skipped
+    * instead of written, which leaves holes in <code>dst</code>.
+    */
+    static void copysparse(File src, File dst, Monitor monitor) throws IOException {
+        try(FileChannel in = new FileInputStream(src).getChannel();
+            RandomAccessFile raf = new RandomAccessFile(dst, "rw")){
+            FileChannel out = raf.getChannel();
+            // the old content must not be left in the holes
+            out.truncate(0);
 
-        try(FileInputStream fis = new FileInputStream(src);
-            FileOutputStream fos = new FileOutputStream(dst)){
+            ByteBuffer buffer = BUFFER.get();
+            buffer.clear();
+            long offset = 0;
+            boolean eof = false;
+            while (!eof) {
+                while (buffer.hasRemaining()) {
+                    if (in.read(buffer) == -1) {
+                        eof = true;
+                        break;
+                    }
+                }
+                buffer.flip();
 
-            byte[] buffer = new byte[40960];
-            int n;
-            while((n = fis.read(buffer)) != -1){
-                fos.write(buffer, 0, n);
+                /* write each run of blocks which are not all zeros */
+                int end = buffer.limit();
+                int run = -1;
+                for (int block = 0; block < end; block += SPARSE_BLOCK) {
+                    if (isZero(buffer, block, Math.min(block + SPARSE_BLOCK, end))) {
+                        if (run >= 0) {
+                            write(out, buffer, run, block, offset + run);
+                            run = -1;
+                        }
+                    } else if (run < 0) {
+                        run = block;
+                    }
+                }
+                if (run >= 0) {
+                    write(out, buffer, run, end, offset + run);
+                }
+                offset += end;
+                buffer.clear();
+                if (monitor != null) {
+                    monitor.bytes(end);
+                }
             }
-        } catch (IOException e) {
-            throw new IOError(e.getMessage());
+            // extend dst over the trailing hole
+            raf.setLength(offset);
         }
     }
 
+    private static boolean isZero(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            if (buffer.getLong(i) != 0) {
+                return false;
+            }
+        }
+        for (; i < to; i++) {
+            if (buffer.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void write(FileChannel out, ByteBuffer buffer, int from, int to, long position) throws IOException {
+        ByteBuffer run = buffer.duplicate();
+        run.limit(to).position(from);
+        while (run.hasRemaining()) {
+            position += out.write(run, position);
+        }
+    }
+
+    /**
+    * Copy the bytes of <code>in</code> from its current position to <code>out</code>.
+    * The bytes are transferred by the kernel (sendfile/copy_file_range) without passing
+    * through the user space. If the kernel cannot transfer them, or the size of <code>in</code>
+    * is unknown, the rest bytes are copied through a direct buffer. If there is a
+    * <code>monitor</code>, the bytes are transferred in chunks, and each chunk is
+    * counted by the <code>monitor</code>.
+    *
+    * @param in the channel to be read
+    * @param out the channel to be written
+    * @param monitor the monitor of the copy, may be null
+    * @return the number of bytes copied
+    */
+    static long transfer(FileChannel in, FileChannel out, Monitor monitor) throws IOException {
+        long start = in.position();
+        long position = start;
+        long size = in.size();
+        long chunk = monitor == null ? Long.MAX_VALUE : TRANSFER_CHUNK;
+        while (position < size) {
+            long n = in.transferTo(position, Math.min(chunk, size - position), out);
+            if (n <= 0) {
+                break;
+            }
+            position += n;
+            if (monitor != null) {
+                monitor.bytes(n);
+            }
+        }
+        if (size > 0 && position == size) {
+            return position - start;
+        }
+
+        in.position(position);
+        ByteBuffer buffer = BUFFER.get();
+        buffer.clear();
+        while (in.read(buffer) != -1) {
+            buffer.flip();
+            position += buffer.remaining();
+            if (monitor != null) {
+                monitor.bytes(buffer.remaining());
+            }
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            buffer.clear();
+        }
+        return position - start;
+    }
+
+    /**
+     * Copy many files, the content of each source file is copied to its
+     * destination, the parent directories of the destinations are created.
+     *
+     * @param manifest the pairs of a source file and its destination, a source may
+     * have many destinations
+     * @return the report of the copy, with the failures of the files
+     * @see Copier#copyfiles(Collection)
+     */
+    public static Report copyfiles(Collection<? extends Map.Entry<File, File>> manifest){
+        return copier().copyfiles(manifest);
+    }
+
     public static void move(String src, String dst){
         File srcFile = new File(src);
         File dstFile = new File(dst);
@@ -70,15 +283,14 @@ public class Shutil{
      * 
      * @param src the source file to be moved
      * @param dst the destination to be moved
+     * @see Copier#move(File, File)
      */
     public static void move(File src, File dst){
-        copy(src, dst);
-        if(src.isFile()) {
-            src.delete();
-        } else {
-            rmtree(src);
-        }
+        copier().move(src, dst);
+    }
 
+    public static Copier copier(){
+        return new Copier();
     }
 
     public static void copy(String src, String dst){
@@ -95,44 +307,10 @@ public class Shutil{
      * 
      * @param src the source file to be copied.
      * @param dst the destination of a copied file.
+     * @see Copier#copy(File, File)
      */    
     public static void copy(File src, File dst){
-        if (!src.exists()) {
-            throw new FileNotFoundError(
-                String.format("File src does not exist: %s", src.getPath())
-            );
-        }
-
-        // Create dst as a file or directory according to src
-        if (!dst.exists()){
-            if(src.isFile()){
-                try {
-                    dst.createNewFile();
-                } catch (IOException e){
-                    throw new IOError(
-                        String.format("Cannot create file dst: %s", dst.getPath())
-                    );
-                }
-            } else {
-                dst.mkdirs();
-            }
-        }
-
-        if(src.isDirectory() && dst.isFile()) {
-            throw new IOError(
-                "cannot copy a directory to a file"
-            );
-        }
-
-        if(dst.isDirectory()){
-            dst = new File(dst, src.getName());
-        }
-        if(src.isFile()){
-            copyfile(src, dst);
-        } else {
-            copytree(src, dst);
-        }
-        
+        copier().copy(src, dst);
     }
 
     public static void copytree(String olddir, String newdir){
@@ -147,32 +325,90 @@ public class Shutil{
      * 
      * @param olddir the source directory
      * @param newdir the targeted directory
+     * @see Copier#copytree(File, File)
      */
     public static void copytree(File olddir, File newdir) {
-        if(newdir.exists()) {
-            throw new FileNotFoundError(
-                String.format("File newdir exists: %s", newdir.getPath())
-            );
-        }
-        if(olddir.isFile() || !olddir.exists()) {
-            throw new FileNotFoundError(
-                String.format("Except a directory, olddir is a file or does not exist: %s", olddir.getPath())
-            );
-        }
+        copier().copytree(olddir, newdir);
+    }
 
-        _copytree(olddir, newdir);
+    public static Walker walk(String root) {
+        return walk(new File(root));
     }
 
-    private static void _copytree(File olddir, File newdir) {
-        newdir.mkdirs();
+    /**
+     * Walk the tree <code>root</code> lazily, the entries are returned with their
+     * attributes, and can be filtered by globs and depth.
+     *
+     * @param root the directory to be walked.
+     * @return the walker, which is configured before iterating.
+     * @see Walker
+     */
+    public static Walker walk(File root) {
+        return new Walker(root.toPath());
+    }
 
-        for(File file : olddir.listFiles()) {
-            if(file.isFile()) {
-                copyfile(file, new File(newdir, file.getName()));
-            } else {
-                _copytree(file, new File(newdir, file.getName()));
-            }
-        }
+    /**
+     * Create a digester, which computes the content digests of files and trees.
+     *
+     * @return the digester, which is configured before hashing.
+     * @see Digester
+     */
+    public static Digester digester() {
+        return new Digester();
+    }
+
+    /**
+     * Create a duplicate finder, which finds the files with the same content under a tree.
+     *
+     * @return the finder, which is configured before searching.
+     * @see Duplicates
+     */
+    public static Duplicates duplicates() {
+        return new Duplicates();
+    }
+
+    public static File makeArchive(String baseName, String format, String rootDir) {
+        return makeArchive(new File(baseName), format, new File(rootDir));
+    }
+
+    /**
+     * Create an archive of a directory, the names of the entries are relative
+     * to <code>rootDir</code>. It is similar to Python's "make_archive".
+     *
+     * @param baseName the path of the archive without the extension
+     * @param format "zip", "tar" or "gztar"
+     * @param rootDir the directory to be archived
+     * @return the created archive
+     * @see Archiver#make(File, String, File)
+     */
+    public static File makeArchive(File baseName, String format, File rootDir) {
+        return archiver().make(baseName, format, rootDir);
+    }
+
+    public static void unpackArchive(String filename, String extractDir) {
+        unpackArchive(new File(filename), new File(extractDir));
+    }
+
+    /**
+     * Extract an archive into a directory, the format is guessed by the
+     * extension of the archive. It is similar to Python's "unpack_archive".
+     *
+     * @param filename the archive
+     * @param extractDir the directory to be extracted into
+     * @see Archiver#unpack(File, File, String)
+     */
+    public static void unpackArchive(File filename, File extractDir) {
+        archiver().unpack(filename, extractDir, null);
+    }
+
+    /**
+     * Create an archiver, which creates and extracts archives in parallel.
+     *
+     * @return the archiver, which is configured before archiving.
+     * @see Archiver
+     */
+    public static Archiver archiver() {
+        return new Archiver();
     }
 
     public static void rmtree(String dir) {
@@ -180,25 +416,185 @@ public class Shutil{
     }
 
     /**
-     * Recursively remove a existed directory.
+     * Recursively remove a existed directory. Symbolic links are removed,
+     * but never followed, and <code>dir</code> itself must not be a link. If some
+     * entries cannot be removed, the others are still removed, and a
+     * <code>CompoundIOError</code> is thrown at the end.
      * @param dir the directory to be removed.
      */
     public static void rmtree(File dir) {
+        rmtree(dir, 1).check(String.format("Cannot remove %s", dir.getPath()));
+    }
+
+    public static Report rmtree(String dir, int threads) {
+        return rmtree(new File(dir), threads);
+    }
+
+    /**
+     * Recursively remove a existed directory on a pool of <code>threads</code>
+     * workers. The entries of each directory are read as a stream instead of an
+     * array, the files are removed as soon as they are read, and the subdirectories
+     * are removed concurrently. The failures do not stop the removal, they are
+     * returned in the report with the number of removed entries.
+     *
+     * @param dir the directory to be removed.
+     * @param threads the number of workers.
+     * @return the report of the removed and failed entries.
+     */
+    public static Report rmtree(File dir, int threads) {
+        return rmtree(dir, threads, null);
+    }
+
+    /**
+     * Recursively remove a existed directory like <code>rmtree(dir, threads)</code>,
+     * the removed entries are counted by the <code>monitor</code>. If the
+     * <code>monitor</code> is cancelled, the rest entries are kept, and a
+     * <code>CancelledError</code> is thrown.
+     *
+     * @param dir the directory to be removed.
+     * @param threads the number of workers.
+     * @param monitor the monitor of the removal, may be null.
+     * @return the report of the removed and failed entries.
+     */
+    public static Report rmtree(File dir, int threads, Monitor monitor) {
+        // the target of a link is not removed, as Python's shutil refuses it
+        if (Files.isSymbolicLink(dir.toPath())) {
+            throw new IOError(
+                String.format("Cannot call rmtree on a symbolic link: %s", dir.getPath())
+            );
+        }
         if (!dir.exists() || dir.isFile()) {
             throw new FileNotFoundError(
                 String.format("File dir does exist or is a file: %s", dir.getPath())
             );
         }
 
-        for(File file : dir.listFiles()) {
-            if(file.isFile()) {
-                file.delete();
-            } else {
-                rmtree(file);
-                file.delete();
+        Report report = new Report();
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        try {
+            pool.invoke(new RemoveTask(dir.toPath(), report, monitor));
+        } finally {
+            pool.shutdown();
+        }
+        if (monitor != null) {
+            monitor.check();
+        }
+        return report;
+    }
+
+    /**
+     * Remove a directory after its entries, each subdirectory is removed by a forked task.
+     */
+    private static final class RemoveTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private Path dir;
+        private Report report;
+        private Monitor monitor;
+
+        RemoveTask(Path dir, Report report, Monitor monitor) {
+            this.dir = dir;
+            this.report = report;
+            this.monitor = monitor;
+        }
+
+        @Override
+        protected void compute() {
+            if (monitor != null && monitor.cancelled()) {
+                return;
+            }
+            List<RemoveTask> subtasks = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                        RemoveTask task = new RemoveTask(entry, report, monitor);
+                        task.fork();
+                        subtasks.add(task);
+                    } else {
+                        delete(entry);
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                report.fail(dir.toString(), e);
+            }
+
+            for (RemoveTask task : subtasks) {
+                task.join();
+            }
+            delete(dir);
+        }
+
+        private void delete(Path path) {
+            if (monitor != null) {
+                if (monitor.cancelled()) {
+                    return;
+                }
+                monitor.file(path.toString());
+            }
+            try {
+                Files.delete(path);
+                report.entry(0);
+                if (monitor != null) {
+                    monitor.fileDone();
+                }
+            } catch (IOException e) {
+                report.fail(path.toString(), e);
             }
         }
-        dir.delete();
+    }
+
+    public static Usage du(String dir) {
+        return du(new File(dir));
+    }
+
+    /**
+     * Compute the disk usage of a directory, with the usages of its
+     * children. It is similar to the Unix "du" command.
+     *
+     * @param dir the directory to be measured
+     * @return the usage of <code>dir</code>
+     * @see #du(File, int, int)
+     */
+    public static Usage du(File dir) {
+        return du(dir, 1, 1);
+    }
+
+    public static Usage du(String dir, int threads, int depth) {
+        return du(new File(dir), threads, depth);
+    }
+
+    /**
+     * Compute the disk usage of a directory, each subdirectory is walked by a
+     * task on a pool of <code>threads</code> workers. The symbolic links are
+     * not followed, and a file with many hard links is counted once. The
+     * entries which cannot be read are skipped and recorded in the report
+     * of the usage.
+     *
+     * @param dir the directory to be measured
+     * @param threads the number of workers
+     * @param depth the depth of the subdirectories whose usages are kept,
+     *              0 keeps only the total
+     * @return the usage of <code>dir</code>
+     */
+    public static Usage du(File dir, int threads, int depth) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(dir.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            attrs = null;
+        }
+        if (attrs == null || !attrs.isDirectory()) {
+            throw new FileNotFoundError(
+                String.format("File dir does not exist or is not a directory: %s", dir.getPath())
+            );
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        try {
+            return pool.invoke(new Usage.Task(dir.toPath(), attrs.size(), depth, new Report()));
+        } finally {
+            pool.shutdown();
+        }
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,417 @@
+package xyz.jiel.tools;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A minimal tar format, used by <code>Archiver</code>. The entries are written in the ustar
+ * format, the names longer than the ustar fields are written as GNU long names, and the sizes
+ * not less than 8 GB are written in the GNU base-256 form. The reader also understands the
+ * path, linkpath and size of the pax extended headers.
+ */
+final class Tar {
+    static final int BLOCK = 512;
+
+    static final char FILE = '0';
+    static final char HARDLINK = '1';
+    static final char SYMLINK = '2';
+    static final char DIRECTORY = '5';
+    private static final char GNU_LONGNAME = 'L';
+    private static final char GNU_LONGLINK = 'K';
+    private static final char PAX = 'x';
+    private static final char PAX_GLOBAL = 'g';
+
+    private static final byte[] LONGLINK = "././@LongLink".getBytes(StandardCharsets.US_ASCII);
+
+    private Tar() {
+    }
+
+    /**
+     * An entry of a tar archive.
+     */
+    static final class Entry {
+        String name;
+        char type = FILE;
+        int mode = 0644;
+        long size;
+        /** the modified time in seconds */
+        long mtime;
+        String linkname = "";
+
+        boolean isDirectory() {
+            return type == DIRECTORY;
+        }
+
+        boolean isFile() {
+            return type == FILE || type == 0 || type == '7';
+        }
+    }
+
+    /**
+     * Write the entries, the content of each file entry is written right after it,
+     * then the entry is closed by <code>closeEntry()</code>.
+     */
+    static final class Output extends FilterOutputStream {
+        private long size;
+        /** the bytes of the current entry which are not written yet */
+        private long remaining;
+
+        Output(OutputStream out) {
+            super(out);
+        }
+
+        void putEntry(Entry entry) throws IOException {
+            if (remaining != 0) {
+                throw new IOException(String.format("%d bytes of the last entry are missing", remaining));
+            }
+            byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+            byte[] linkname = entry.linkname.getBytes(StandardCharsets.UTF_8);
+            if (linkname.length > 100) {
+                writeLong(GNU_LONGLINK, linkname);
+            }
+            int split = split(name);
+            if (split < 0) {
+                writeLong(GNU_LONGNAME, name);
+            }
+            size = entry.isFile() ? entry.size : 0;
+            writeHeader(name, split, entry.type, entry.mode, size, entry.mtime, linkname);
+            remaining = size;
+        }
+
+        /**
+         * Get where the name is split into the prefix and the name fields.
+         *
+         * @return 0 if the name fits the name field, -1 if it cannot be split.
+         */
+        private static int split(byte[] name) {
+            if (name.length <= 100) {
+                return 0;
+            }
+            for (int i = Math.min(155, name.length - 2); i > 0; i--) {
+                if (name[i] == '/' && name.length - i - 1 <= 100) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void writeHeader(byte[] name, int split, char type, int mode, long size, long mtime,
+                                 byte[] linkname) throws IOException {
+            byte[] header = new byte[BLOCK];
+            if (split > 0) {
+                put(header, 345, 155, Arrays.copyOfRange(name, 0, split));
+                put(header, 0, 100, Arrays.copyOfRange(name, split + 1, name.length));
+            } else {
+                // a long name is truncated, the full name is in the GNU long name entry
+                put(header, 0, 100, name);
+            }
+            octal(header, 100, 8, mode & 07777);
+            octal(header, 108, 8, 0);
+            octal(header, 116, 8, 0);
+            number(header, 124, 12, size);
+            number(header, 136, 12, mtime);
+            header[156] = (byte) type;
+            put(header, 157, 100, linkname);
+            put(header, 257, 8, "ustar\00000".getBytes(StandardCharsets.US_ASCII));
+            Arrays.fill(header, 148, 156, (byte) ' ');
+            long sum = 0;
+            for (byte b : header) {
+                sum += b & 0xFF;
+            }
+            octal(header, 148, 7, sum);
+            out.write(header);
+        }
+
+        private void writeLong(char type, byte[] value) throws IOException {
+            byte[] data = Arrays.copyOf(value, value.length + 1);
+            writeHeader(LONGLINK, 0, type, 0644, data.length, 0, new byte[0]);
+            out.write(data);
+            out.write(new byte[padding(data.length)]);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > remaining) {
+                throw new IOException("Write more bytes than the size of the entry");
+            }
+            out.write(b, off, len);
+            remaining -= len;
+        }
+
+        /** Pad the content of the current entry to a whole block. */
+        void closeEntry() throws IOException {
+            if (remaining != 0) {
+                throw new IOException(String.format("%d bytes of the entry are missing", remaining));
+            }
+            out.write(new byte[padding(size)]);
+            size = 0;
+        }
+
+        /** Write the two zero blocks which end the archive, then close the stream. */
+        @Override
+        public void close() throws IOException {
+            try {
+                closeEntry();
+                out.write(new byte[BLOCK * 2]);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Read the entries, the content of each file entry is read right after it.
+     */
+    static final class Input extends FilterInputStream {
+        private long remaining;
+        private int padding;
+
+        Input(InputStream in) {
+            super(in);
+        }
+
+        /**
+         * Read the next entry, the rest of the current entry is skipped.
+         *
+         * @return the entry, or null at the end of the archive.
+         */
+        Entry nextEntry() throws IOException {
+            skipFully(remaining + padding);
+            remaining = 0;
+            padding = 0;
+
+            String longName = null;
+            String longLink = null;
+            long paxSize = -1;
+            byte[] header = new byte[BLOCK];
+            while (true) {
+                if (!readFully(header) || isZero(header)) {
+                    return null;
+                }
+                checkHeader(header);
+                char type = (char) header[156];
+                long size = number(header, 124, 12);
+                if (type == GNU_LONGNAME || type == GNU_LONGLINK || type == PAX || type == PAX_GLOBAL) {
+                    byte[] data = new byte[(int) size];
+                    if (!readFully(data)) {
+                        throw new EOFException("Unexpected end of the tar archive");
+                    }
+                    skipFully(padding(size));
+                    if (type == GNU_LONGNAME) {
+                        longName = string(data, 0, data.length);
+                    } else if (type == GNU_LONGLINK) {
+                        longLink = string(data, 0, data.length);
+                    } else if (type == PAX) {
+                        for (String[] record : pax(data)) {
+                            if (record[0].equals("path")) {
+                                longName = record[1];
+                            } else if (record[0].equals("linkpath")) {
+                                longLink = record[1];
+                            } else if (record[0].equals("size")) {
+                                paxSize = Long.parseLong(record[1]);
+                            }
+                        }
+                    }
+                    continue;
+                }
+
+                Entry entry = new Entry();
+                entry.type = type;
+                entry.name = longName != null ? longName : name(header);
+                entry.linkname = longLink != null ? longLink : string(header, 157, 100);
+                entry.mode = (int) number(header, 100, 8);
+                entry.size = paxSize >= 0 ? paxSize : size;
+                entry.mtime = number(header, 136, 12);
+                if (entry.name.endsWith("/") && type != SYMLINK && type != HARDLINK) {
+                    entry.type = DIRECTORY;
+                }
+                // the data of an unknown entry is skipped with it
+                boolean empty = entry.type == DIRECTORY || entry.type == SYMLINK || entry.type == HARDLINK;
+                remaining = empty ? 0 : entry.size;
+                padding = padding(remaining);
+                return entry;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n == -1) {
+                throw new EOFException("Unexpected end of the tar archive");
+            }
+            remaining -= n;
+            return n;
+        }
+
+        /** Skip the data of the current entry, up to its end. */
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = Math.min(Math.max(n, 0), remaining);
+            skipFully(skipped);
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        private boolean readFully(byte[] b) throws IOException {
+            int off = 0;
+            while (off < b.length) {
+                int n = in.read(b, off, b.length - off);
+                if (n == -1) {
+                    if (off == 0) {
+                        return false;
+                    }
+                    throw new EOFException("Unexpected end of the tar archive");
+                }
+                off += n;
+            }
+            return true;
+        }
+
+        private void skipFully(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(n, 1 << 16)];
+            while (n > 0) {
+                int r = in.read(buffer, 0, (int) Math.min(n, buffer.length));
+                if (r == -1) {
+                    throw new EOFException("Unexpected end of the tar archive");
+                }
+                n -= r;
+            }
+        }
+    }
+
+    private static int padding(long size) {
+        return (int) (-size & (BLOCK - 1));
+    }
+
+    private static void put(byte[] header, int offset, int length, byte[] value) {
+        System.arraycopy(value, 0, header, offset, Math.min(length, value.length));
+    }
+
+    private static void octal(byte[] header, int offset, int length, long value) {
+        String s = Long.toOctalString(value);
+        StringBuilder builder = new StringBuilder();
+        for (int i = s.length(); i < length - 1; i++) {
+            builder.append('0');
+        }
+        builder.append(s);
+        put(header, offset, length - 1, builder.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /** Write a number in octal, or in the GNU base-256 form if it is too large. */
+    private static void number(byte[] header, int offset, int length, long value) {
+        if (value >= 0 && value < 1L << (3 * (length - 1))) {
+            octal(header, offset, length, value);
+            return;
+        }
+        for (int i = offset + length - 1; i > offset; i--) {
+            header[i] = (byte) value;
+            value >>= 8;
+        }
+        header[offset] = (byte) 0x80;
+    }
+
+    private static long number(byte[] header, int offset, int length) {
+        if ((header[offset] & 0x80) != 0) {
+            long value = header[offset] & 0x7F;
+            for (int i = offset + 1; i < offset + length; i++) {
+                value = value << 8 | (header[i] & 0xFF);
+            }
+            return value;
+        }
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = header[i];
+            if (b >= '0' && b <= '7') {
+                value = value * 8 + (b - '0');
+            } else if (b == 0 || (b == ' ' && value != 0)) {
+                break;
+            }
+        }
+        return value;
+    }
+
+    private static String string(byte[] data, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && data[end] != 0) {
+            end++;
+        }
+        return new String(data, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    /** Get the name, with the prefix of the ustar format. */
+    private static String name(byte[] header) {
+        String name = string(header, 0, 100);
+        boolean ustar = new String(header, 257, 6, StandardCharsets.US_ASCII).equals("ustar\0");
+        String prefix = ustar ? string(header, 345, 155) : "";
+        return prefix.isEmpty() ? name : prefix + "/" + name;
+    }
+
+    private static void checkHeader(byte[] header) throws IOException {
+        long sum = 0;
+        for (int i = 0; i < BLOCK; i++) {
+            sum += i >= 148 && i < 156 ? ' ' : header[i] & 0xFF;
+        }
+        if (sum != number(header, 148, 8)) {
+            throw new IOException("Invalid tar header, the checksum does not match");
+        }
+    }
+
+    private static boolean isZero(byte[] b) {
+        for (byte x : b) {
+            if (x != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Parse the records "length key=value\n" of a pax header. */
+    private static List<String[]> pax(byte[] data) throws IOException {
+        List<String[]> ret = new ArrayList<>();
+        int pos = 0;
+        while (pos < data.length && data[pos] != 0) {
+            int space = pos;
+            while (space < data.length && data[space] != ' ') {
+                space++;
+            }
+            int length;
+            try {
+                length = Integer.parseInt(new String(data, pos, space - pos, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid pax header");
+            }
+            if (length <= 0 || pos + length > data.length) {
+                throw new IOException("Invalid pax header");
+            }
+            String record = new String(data, space + 1, pos + length - space - 2, StandardCharsets.UTF_8);
+            int eq = record.indexOf('=');
+            if (eq > 0) {
+                ret.add(new String[]{record.substring(0, eq), record.substring(eq + 1)});
+            }
+            pos += length;
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,172 @@
+package xyz.jiel.tools;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The disk usage of a directory, computed by <code>Shutil.du()</code>. It has the apparent
+ * size (the sum of the sizes of the entries), the allocated size, the number of the files and
+ * the directories, and the usages of its subdirectories down to the requested depth. A file
+ * with many hard links is counted once, under the first of its names that be found.
+ *
+ * <p>The allocated size is estimated by rounding the size of each file up to
+ * <code>BLOCK</code> bytes, so it is not exact for the sparse and the compressed files.
+ */
+public final class Usage {
+    /** the size of the blocks used to estimate the allocated size */
+    public static final int BLOCK = 4096;
+
+    private Path path;
+    private long apparent;
+    private long allocated;
+    private long files;
+    private long directories;
+    private Map<String, Usage> children = new TreeMap<>();
+    private Report report;
+
+    Usage(Path path, Report report) {
+        this.path = path;
+        this.report = report;
+    }
+
+    public Path path() { return path; }
+
+    /** the sum of the sizes of the entries, the directory itself included */
+    public long apparent() { return apparent; }
+
+    /** the estimated number of bytes allocated on the disk */
+    public long allocated() { return allocated; }
+
+    /** the number of the entries which are not directories */
+    public long files() { return files; }
+
+    /** the number of the subdirectories at any depth */
+    public long directories() { return directories; }
+
+    /** the usages of the subdirectories keyed by their names, sorted by the names */
+    public Map<String, Usage> children() { return children; }
+
+    /** the entries which cannot be read, of the whole walk, they are not counted */
+    public Report report() { return report; }
+
+    private void add(long size, boolean file, boolean link) {
+        apparent += size;
+        if (!link) {
+            // a short symbolic link is kept in its inode, count it as no block
+            allocated += (size + BLOCK - 1) / BLOCK * BLOCK;
+        }
+        if (file) {
+            files++;
+        }
+    }
+
+    private void add(Usage child) {
+        apparent += child.apparent;
+        allocated += child.allocated;
+        files += child.files;
+        directories += child.directories + 1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Usage(%s, apparent=%d, allocated=%d, files=%d, directories=%d)",
+                path, apparent, allocated, files, directories);
+    }
+
+    /**
+     * Compute the usage of a directory after its subdirectories, each subdirectory is
+     * computed by a forked task.
+     */
+    static final class Task extends RecursiveTask<Usage> {
+        private static final long serialVersionUID = 1L;
+
+        /** the unix attributes read by one call, on the file systems which support them */
+        private static final String UNIX = "unix:mode,size,nlink,ino,dev";
+
+        private Path dir;
+        private long size;
+        private int depth;
+        private Report report;
+        private Set<Object> linked;
+
+        Task(Path dir, long size, int depth, Report report) {
+            this(dir, size, depth, report, Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>()));
+        }
+
+        private Task(Path dir, long size, int depth, Report report, Set<Object> linked) {
+            this.dir = dir;
+            this.size = size;
+            this.depth = depth;
+            this.report = report;
+            this.linked = linked;
+        }
+
+        @Override
+        protected Usage compute() {
+            Usage ret = new Usage(dir, report);
+            ret.add(size, false, false);
+            List<Task> subtasks = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    try {
+                        stat(entry, ret, subtasks);
+                    } catch (IOException e) {
+                        report.fail(entry.toString(), e);
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                report.fail(dir.toString(), e);
+            }
+
+            for (Task task : subtasks) {
+                Usage child = task.join();
+                ret.add(child);
+                if (depth > 0) {
+                    ret.children.put(child.path.getFileName().toString(), child);
+                }
+            }
+            return ret;
+        }
+
+        /**
+         * Count <code>entry</code> into <code>usage</code>, or fork a task if it is a directory.
+         * The attributes are read by one call.
+         */
+        private void stat(Path entry, Usage usage, List<Task> subtasks) throws IOException {
+            boolean directory;
+            boolean link;
+            long length;
+            Object key = null;
+            try {
+                Map<String, Object> attrs = Files.readAttributes(entry, UNIX, LinkOption.NOFOLLOW_LINKS);
+                int type = (Integer) attrs.get("mode") & 0170000;
+                directory = type == 0040000;
+                link = type == 0120000;
+                length = (Long) attrs.get("size");
+                if (!directory && (Integer) attrs.get("nlink") > 1) {
+                    key = attrs.get("dev") + ":" + attrs.get("ino");
+                }
+            } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class,
+                        LinkOption.NOFOLLOW_LINKS);
+                directory = attrs.isDirectory();
+                link = attrs.isSymbolicLink();
+                length = attrs.size();
+                // the number of the links is unknown, a file key of a file is not shared otherwise
+                key = attrs.fileKey();
+            }
+
+            if (directory) {
+                Task task = new Task(entry, length, depth - 1, report, linked);
+                task.fork();
+                subtasks.add(task);
+            } else if (key == null || linked.add(key)) {
+                usage.add(length, true, link);
+            }
+        }
+    }
+}
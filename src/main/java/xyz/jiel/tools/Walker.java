@@ -0,0 +1,338 @@
+package xyz.jiel.tools;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+import xyz.jiel.exceptions.IOError;
+
+/**
+ * Walk a tree lazily, created by <code>Shutil.walk()</code>, support foreach loop, return an
+ * <code>Entry</code> in each loop. The entries under the root are returned in depth-first
+ * order, a directory before its children. The entries of each directory are read as a stream,
+ * and the attributes of each entry are read in the same pass, so a tree of millions of entries
+ * is walked in constant memory per level without extra stat calls.
+ *
+ * <p>A glob without '/' is matched against the name of an entry, otherwise against its path
+ * relative to the root. If there are <code>include</code> globs, only the files matching one of
+ * them are returned, the directories are still walked. The entries matching an
+ * <code>exclude</code> glob are not returned, and the excluded directories are not walked.
+ * The children of a returned directory can also be skipped by <code>Cursor.prune()</code>.
+ *
+ * <p>Each level being walked keeps a directory open, they are closed when the walk ends. A
+ * walk which may stop before the end, e.g. a foreach loop with a <code>break</code> or an
+ * exception, must close the walker or the cursor, by try-with-resources:
+ *
+ * <pre>
+ * try (Walker walker = Shutil.walk("src").include("*.java").exclude(".git")) {
+ *     for (Walker.Entry entry : walker) {
+ *         ...
+ *     }
+ * }
+ * </pre>
+ */
+public final class Walker implements Iterable<Walker.Entry>, Closeable {
+    private Path root;
+    private List<PathMatcher> includes = new ArrayList<>();
+    private List<PathMatcher> excludes = new ArrayList<>();
+    private int maxDepth = Integer.MAX_VALUE;
+    private boolean followLinks = false;
+    private Report report;
+
+    /** the cursors which have open directories */
+    private List<Cursor> cursors = new ArrayList<>();
+
+    Walker(Path root) {
+        this.root = root;
+    }
+
+    public Path root() { return root; }
+
+    public Walker include(String glob) { includes.add(matcher(glob)); return this; }
+    public Walker exclude(String glob) { excludes.add(matcher(glob)); return this; }
+
+    /** Set the maximum depth of the returned entries, the children of the root are at depth 1. */
+    public int maxDepth() { return maxDepth; }
+    public Walker maxDepth(int n) { maxDepth = n; return this; }
+
+    /** Set whether the symbolic links are followed, the loops are skipped when following. */
+    public boolean followLinks() { return followLinks; }
+    public Walker followLinks(boolean b) { followLinks = b; return this; }
+
+    /**
+     * Set the report which records the entries that cannot be read, they are skipped.
+     * Without a report, an <code>IOError</code> is thrown.
+     */
+    public Report report() { return report; }
+    public Walker report(Report r) { report = r; return this; }
+
+    @Override
+    public Cursor iterator() {
+        return new Cursor();
+    }
+
+    /**
+     * Close the directories of all the cursors of this walker, the cursors end.
+     */
+    @Override
+    public void close() {
+        for (Cursor cursor : new ArrayList<>(cursors)) {
+            cursor.close();
+        }
+    }
+
+    private PathMatcher matcher(String glob) {
+        final PathMatcher m = root.getFileSystem().getPathMatcher("glob:" + glob);
+        if (glob.indexOf('/') != -1) {
+            return m;
+        }
+        return new PathMatcher() {
+            @Override
+            public boolean matches(Path path) {
+                Path name = path.getFileName();
+                return name != null && m.matches(name);
+            }
+        };
+    }
+
+    private static boolean any(List<PathMatcher> matchers, Path path) {
+        for (PathMatcher m : matchers) {
+            if (m.matches(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * An entry of the tree with its attributes.
+     */
+    public static final class Entry {
+        private Path path;
+        private Path relative;
+        private BasicFileAttributes attrs;
+        private int depth;
+
+        Entry(Path path, Path relative, BasicFileAttributes attrs, int depth) {
+            this.path = path;
+            this.relative = relative;
+            this.attrs = attrs;
+            this.depth = depth;
+        }
+
+        public Path path() { return path; }
+        public File file() { return path.toFile(); }
+
+        /** the path relative to the root */
+        public Path relative() { return relative; }
+
+        /** the path relative to the root, separated by '/' on any platform */
+        public String slashed() {
+            StringBuilder builder = new StringBuilder();
+            for (Path name : relative) {
+                if (builder.length() > 0) {
+                    builder.append('/');
+                }
+                builder.append(name.toString());
+            }
+            return builder.toString();
+        }
+
+        public BasicFileAttributes attrs() { return attrs; }
+        public int depth() { return depth; }
+        public boolean isDirectory() { return attrs.isDirectory(); }
+        public boolean isFile() { return attrs.isRegularFile(); }
+        public boolean isLink() { return attrs.isSymbolicLink(); }
+        public long size() { return attrs.size(); }
+
+        @Override
+        public String toString() {
+            return path.toString();
+        }
+    }
+
+    /**
+     * The iterator of the entries. The directories being read are closed when the walk
+     * ends, or when <code>close()</code> of the cursor or of its walker is called.
+     */
+    public final class Cursor implements Iterator<Entry>, Closeable {
+        private Deque<Frame> frames = new ArrayDeque<>();
+        private Entry nextEntry;
+
+        /** the last returned directory, its children are read on the next call */
+        private Entry pending;
+
+        Cursor() {
+            try {
+                BasicFileAttributes attrs = readAttributes(root);
+                if (!attrs.isDirectory()) {
+                    throw new IOError(String.format("Except a directory: %s", root));
+                }
+                if (maxDepth > 0) {
+                    push(root, attrs, 0);
+                }
+            } catch (IOException e) {
+                throw new IOError(String.format("Cannot walk %s: %s", root, e));
+            }
+            if (!frames.isEmpty()) {
+                cursors.add(this);
+            }
+        }
+
+        /**
+         * Skip the children of the last returned directory, it must be called before
+         * <code>hasNext()</code>.
+         */
+        public void prune() {
+            pending = null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (nextEntry == null) {
+                nextEntry = advance();
+            }
+            return nextEntry != null;
+        }
+
+        @Override
+        public Entry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Entry ret = nextEntry;
+            nextEntry = null;
+            pending = ret.isDirectory() && ret.depth < maxDepth ? ret : null;
+            return ret;
+        }
+
+        private Entry advance() {
+            if (pending != null) {
+                Entry dir = pending;
+                pending = null;
+                try {
+                    push(dir.path, dir.attrs, dir.depth);
+                } catch (IOException e) {
+                    fail(dir.path, e);
+                }
+            }
+
+            while (!frames.isEmpty()) {
+                Frame frame = frames.peek();
+                Path path;
+                try {
+                    if (!frame.entries.hasNext()) {
+                        frames.pop().close();
+                        continue;
+                    }
+                    path = frame.entries.next();
+                } catch (DirectoryIteratorException e) {
+                    fail(frame.dir, e.getCause());
+                    frames.pop().close();
+                    continue;
+                }
+
+                Path relative = root.relativize(path);
+                if (any(excludes, relative)) {
+                    continue;
+                }
+
+                BasicFileAttributes attrs;
+                try {
+                    attrs = readAttributes(path);
+                } catch (IOException e) {
+                    fail(path, e);
+                    continue;
+                }
+                if (attrs.isDirectory() && followLinks && isLoop(attrs)) {
+                    fail(path, new FileSystemLoopException(path.toString()));
+                    continue;
+                }
+                Entry entry = new Entry(path, relative, attrs, frame.depth + 1);
+                if (includes.isEmpty() || attrs.isDirectory() || any(includes, relative)) {
+                    return entry;
+                }
+            }
+            close();
+            return null;
+        }
+
+        private BasicFileAttributes readAttributes(Path path) throws IOException {
+            if (followLinks) {
+                try {
+                    return Files.readAttributes(path, BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    // a broken link, return the link itself
+                }
+            }
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+
+        private boolean isLoop(BasicFileAttributes attrs) {
+            Object key = attrs.fileKey();
+            if (key == null) {
+                return false;
+            }
+            for (Frame frame : frames) {
+                if (key.equals(frame.key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void push(Path dir, BasicFileAttributes attrs, int depth) throws IOException {
+            frames.push(new Frame(dir, attrs.fileKey(), depth, Files.newDirectoryStream(dir)));
+        }
+
+        private void fail(Path path, IOException e) {
+            if (report == null) {
+                close();
+                throw new IOError(String.format("Cannot walk %s: %s", path, e));
+            }
+            report.fail(path.toString(), e);
+        }
+
+        @Override
+        public void close() {
+            while (!frames.isEmpty()) {
+                frames.pop().close();
+            }
+            pending = null;
+            cursors.remove(this);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /** A directory being read. */
+    private static final class Frame {
+        private Path dir;
+        private Object key;
+        private int depth;
+        private DirectoryStream<Path> stream;
+        private Iterator<Path> entries;
+
+        Frame(Path dir, Object key, int depth, DirectoryStream<Path> stream) {
+            this.dir = dir;
+            this.key = key;
+            this.depth = depth;
+            this.stream = stream;
+            this.entries = stream.iterator();
+        }
+
+        void close() {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+}
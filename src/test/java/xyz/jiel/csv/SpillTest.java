@@ -0,0 +1,165 @@
+package xyz.jiel.csv;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The spilled paths of {@code CSVJoin} and {@code CSVDedup}, compared with naive implementations.
+ */
+public class SpillTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("spill").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void joinInMemory() {
+        List<String[]> users = users(500);
+        List<String[]> orders = orders(2000, 600);
+        CSVJoin join = join(users, orders).memoryLimit(Long.MAX_VALUE);
+        assertEquals(naiveJoin(users, orders), sorted(join));
+        assertSpilled(0);
+    }
+
+    @Test
+    public void joinSpilled() {
+        List<String[]> users = users(500);
+        List<String[]> orders = orders(2000, 600);
+        CSVJoin join = join(users, orders).memoryLimit(1).partitions(7);
+        assertEquals(naiveJoin(users, orders), sorted(join));
+        assertSpilled(0);
+    }
+
+    @Test
+    public void joinClosedBeforeEnd() {
+        CSVJoin join = join(users(500), orders(2000, 600)).memoryLimit(1).partitions(7);
+        Iterator<String[]> it = join.iterator();
+        it.next();
+        assertTrue(dir.list().length > 0);
+        join.close();
+        assertSpilled(0);
+    }
+
+    @Test
+    public void joinFailed() {
+        List<String[]> orders = orders(2000, 600);
+        orders.add(new String[]{"bad"});
+        try {
+            sorted(join(users(500), orders).memoryLimit(1).partitions(7));
+            fail("Expect the invalid row to fail");
+        } catch (CSVException e) {
+            // expected
+        }
+        assertSpilled(0);
+    }
+
+    @Test
+    public void dedupInMemory() {
+        List<String[]> rows = orders(3000, 200);
+        CSVDedup dedup = dedup(rows).memoryLimit(Long.MAX_VALUE);
+        List<String> expected = naiveDedup(rows);
+        // the order of the source is kept without spilling
+        List<String> actual = new ArrayList<>();
+        for (String[] row : dedup)
+            actual.add(Arrays.toString(row));
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void dedupSpilled() {
+        List<String[]> rows = orders(3000, 200);
+        CSVDedup dedup = dedup(rows).memoryLimit(1).partitions(5);
+        List<String> expected = naiveDedup(rows);
+        Collections.sort(expected);
+        assertEquals(expected, sorted(dedup));
+        assertSpilled(0);
+    }
+
+    @Test
+    public void dedupClosedBeforeEnd() {
+        CSVDedup dedup = dedup(orders(3000, 200)).memoryLimit(1).partitions(5);
+        Iterator<String[]> it = dedup.iterator();
+        it.next();
+        it.next();
+        assertTrue(dir.list().length > 0);
+        dedup.close();
+        assertSpilled(0);
+    }
+
+    private CSVJoin join(List<String[]> users, List<String[]> orders) {
+        return new CSVJoin(users, orders).keys(Arrays.asList("user_id")).spillDir(dir);
+    }
+
+    private CSVDedup dedup(List<String[]> rows) {
+        return new CSVDedup(rows).keys(Arrays.asList("user_id")).spillDir(dir);
+    }
+
+    private void assertSpilled(int n) {
+        assertEquals(n, dir.list().length);
+    }
+
+    private static List<String[]> users(int n) {
+        List<String[]> ret = new ArrayList<>();
+        ret.add(new String[]{"user_id", "name"});
+        for (int i = 0; i < n; i++)
+            ret.add(new String[]{"u" + i, "name " + i});
+        return ret;
+    }
+
+    /** the orders of the users from 0 to {@code users} exclusively, some users have no orders */
+    private static List<String[]> orders(int n, int users) {
+        List<String[]> ret = new ArrayList<>();
+        ret.add(new String[]{"order_id", "user_id", "amount"});
+        Random random = new Random(42);
+        for (int i = 0; i < n; i++)
+            ret.add(new String[]{"o" + i, "u" + random.nextInt(users), "\u00e9\u4e2d" + i});
+        return ret;
+    }
+
+    private static List<String> naiveJoin(List<String[]> users, List<String[]> orders) {
+        List<String> ret = new ArrayList<>();
+        for (String[] order : orders.subList(1, orders.size())) {
+            for (String[] user : users.subList(1, users.size())) {
+                if (order[1].equals(user[0]))
+                    ret.add(Arrays.toString(new String[]{order[0], order[1], order[2], user[1]}));
+            }
+        }
+        Collections.sort(ret);
+        return ret;
+    }
+
+    private static List<String> naiveDedup(List<String[]> rows) {
+        List<String> ret = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (String[] row : rows.subList(1, rows.size())) {
+            if (seen.add(row[1]))
+                ret.add(Arrays.toString(row));
+        }
+        return ret;
+    }
+
+    private static List<String> sorted(Iterable<String[]> rows) {
+        List<String> ret = new ArrayList<>();
+        for (String[] row : rows)
+            ret.add(Arrays.toString(row));
+        Collections.sort(ret);
+        return ret;
+    }
+}
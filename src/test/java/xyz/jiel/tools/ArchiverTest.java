@@ -0,0 +1,212 @@
+package xyz.jiel.tools;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import xyz.jiel.exceptions.CompoundIOError;
+
+import static org.junit.Assert.*;
+
+public class ArchiverTest {
+    private Path tmp;
+    private Path outside;
+    private Path dir;
+    /** the contents of the file entries of the archives */
+    private Map<Tar.Entry, String> contents = new IdentityHashMap<>();
+
+    @Before
+    public void setUp() throws IOException {
+        tmp = Files.createTempDirectory("archiver");
+        outside = Files.createDirectories(tmp.resolve("outside"));
+        Files.write(outside.resolve("secret"), bytes("secret"));
+        dir = tmp.resolve("x");
+    }
+
+    @After
+    public void tearDown() {
+        Shutil.rmtree(tmp.toFile());
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        Path root = Files.createDirectories(tmp.resolve("root"));
+        Files.createDirectories(root.resolve("a/b"));
+        Files.write(root.resolve("a/b/small"), bytes("small"));
+        byte[] large = new byte[300 << 10];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) (i * 31);
+        }
+        Files.write(root.resolve("a/large"), large);
+        String longName = "a/" + new String(new char[120]).replace('\0', 'n');
+        Files.write(root.resolve(longName), bytes("long"));
+        Files.createSymbolicLink(root.resolve("a/link"), Paths.get("b/small"));
+
+        for (String format : new String[]{"tar", "gztar", "zip"}) {
+            File archive = Shutil.archiver().threads(4).make(tmp.resolve("archive").toFile(), format, root.toFile());
+            Path target = tmp.resolve("unpacked-" + format);
+            Shutil.archiver().threads(4).unpack(archive, target.toFile(), null);
+            assertArrayEquals(bytes("small"), Files.readAllBytes(target.resolve("a/b/small")));
+            assertArrayEquals(large, Files.readAllBytes(target.resolve("a/large")));
+            assertArrayEquals(bytes("long"), Files.readAllBytes(target.resolve(longName)));
+            // zip has no links, the content of the link is archived
+            assertEquals(!format.equals("zip"), Files.isSymbolicLink(target.resolve("a/link")));
+            assertArrayEquals(bytes("small"), Files.readAllBytes(target.resolve("a/link")));
+        }
+    }
+
+    @Test
+    public void refuseNameOutside() throws IOException {
+        File archive = tar(file("../escaped", "x"), file("ok", "ok"));
+        assertFails(archive);
+        assertFalse(Files.exists(tmp.resolve("escaped")));
+        assertArrayEquals(bytes("ok"), Files.readAllBytes(dir.resolve("ok")));
+    }
+
+    @Test
+    public void refuseAbsoluteSymlink() throws IOException {
+        File archive = tar(link(Tar.SYMLINK, "a", outside.toString()));
+        assertFails(archive);
+        assertFalse(Files.exists(dir.resolve("a"), LinkOption.NOFOLLOW_LINKS));
+    }
+
+    @Test
+    public void refuseRelativeSymlinkOutside() throws IOException {
+        File archive = tar(link(Tar.SYMLINK, "d/a", "../../outside"));
+        assertFails(archive);
+        assertFalse(Files.exists(dir.resolve("d/a"), LinkOption.NOFOLLOW_LINKS));
+    }
+
+    @Test
+    public void refuseHardLinkThroughSymlink() throws IOException {
+        File archive = tar(link(Tar.SYMLINK, "a", outside.toString()), link(Tar.HARDLINK, "b", "a/secret"));
+        assertFails(archive);
+        assertFalse(Files.exists(dir.resolve("b"), LinkOption.NOFOLLOW_LINKS));
+        assertEquals(1, Files.getAttribute(outside.resolve("secret"), "unix:nlink"));
+    }
+
+    @Test
+    public void removeSymlinkChainOutside() throws IOException {
+        // each link is inside by its name, but "b" leads out through "a"
+        File archive = tar(dir("d/"), link(Tar.SYMLINK, "a", "."), link(Tar.SYMLINK, "b", "a/d/../.."));
+        assertFails(archive);
+        assertTrue(Files.isSymbolicLink(dir.resolve("a")));
+        assertFalse(Files.exists(dir.resolve("b"), LinkOption.NOFOLLOW_LINKS));
+    }
+
+    @Test
+    public void keepSymlinkInside() throws IOException {
+        File archive = tar(file("d/f", "f"), link(Tar.SYMLINK, "d/a", "../d/f"), link(Tar.HARDLINK, "h", "d/a"));
+        Shutil.unpackArchive(archive, dir.toFile());
+        assertArrayEquals(bytes("f"), Files.readAllBytes(dir.resolve("d/a")));
+        assertTrue(Files.isSameFile(dir.resolve("d/f"), dir.resolve("h")));
+    }
+
+    @Test
+    public void noWriteThroughExistingSymlink() throws IOException {
+        Files.createDirectories(dir);
+        Files.createSymbolicLink(dir.resolve("f"), outside.resolve("secret"));
+        File archive = tar(file("f", "overwritten"));
+        Shutil.unpackArchive(archive, dir.toFile());
+        assertArrayEquals(bytes("secret"), Files.readAllBytes(outside.resolve("secret")));
+        assertFalse(Files.isSymbolicLink(dir.resolve("f")));
+        assertArrayEquals(bytes("overwritten"), Files.readAllBytes(dir.resolve("f")));
+    }
+
+    @Test
+    public void noWriteThroughExistingHardLink() throws IOException {
+        Files.createDirectories(dir);
+        Files.createLink(dir.resolve("f"), outside.resolve("secret"));
+        File archive = tar(file("f", "overwritten"));
+        Shutil.unpackArchive(archive, dir.toFile());
+        assertArrayEquals(bytes("secret"), Files.readAllBytes(outside.resolve("secret")));
+        assertArrayEquals(bytes("overwritten"), Files.readAllBytes(dir.resolve("f")));
+    }
+
+    @Test
+    public void refuseParentThroughExistingSymlink() throws IOException {
+        Files.createDirectories(dir);
+        Files.createSymbolicLink(dir.resolve("d"), outside);
+        File archive = tar(file("d/new", "x"), file("ok", "ok"));
+        assertFails(archive);
+        assertFalse(Files.exists(outside.resolve("new")));
+        assertArrayEquals(bytes("ok"), Files.readAllBytes(dir.resolve("ok")));
+    }
+
+    @Test
+    public void skipWithinEntry() throws IOException {
+        File archive = tar(file("a", "0123456789"), file("b", "next"));
+        try (Tar.Input in = new Tar.Input(new FileInputStream(archive))) {
+            assertEquals("a", in.nextEntry().name);
+            assertEquals(3, in.skip(3));
+            assertEquals('3', in.read());
+            // bounded by the end of the entry
+            assertEquals(6, in.skip(1000));
+            assertEquals(0, in.skip(1));
+            assertEquals(-1, in.read());
+            Tar.Entry next = in.nextEntry();
+            assertEquals("b", next.name);
+            byte[] content = new byte[(int) next.size];
+            assertEquals(content.length, in.read(content, 0, content.length));
+            assertArrayEquals(bytes("next"), content);
+            assertNull(in.nextEntry());
+        }
+    }
+
+    private void assertFails(File archive) {
+        try {
+            Shutil.unpackArchive(archive, dir.toFile());
+            fail("Expect the archive to be refused");
+        } catch (CompoundIOError e) {
+            assertFalse(e.failures().isEmpty());
+        }
+    }
+
+    private File tar(Tar.Entry... entries) throws IOException {
+        File ret = tmp.resolve("test.tar").toFile();
+        try (Tar.Output out = new Tar.Output(new FileOutputStream(ret))) {
+            for (Tar.Entry e : entries) {
+                out.putEntry(e);
+                if (e.isFile()) {
+                    out.write(bytes(contents.get(e)));
+                }
+                out.closeEntry();
+            }
+        }
+        return ret;
+    }
+
+    private Tar.Entry file(String name, String content) {
+        Tar.Entry ret = new Tar.Entry();
+        ret.name = name;
+        ret.size = bytes(content).length;
+        contents.put(ret, content);
+        return ret;
+    }
+
+    private static Tar.Entry dir(String name) {
+        Tar.Entry ret = new Tar.Entry();
+        ret.name = name;
+        ret.type = Tar.DIRECTORY;
+        ret.mode = 0755;
+        return ret;
+    }
+
+    private static Tar.Entry link(char type, String name, String linkname) {
+        Tar.Entry ret = new Tar.Entry();
+        ret.name = name;
+        ret.type = type;
+        ret.linkname = linkname;
+        return ret;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,162 @@
+package xyz.jiel.tools;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import xyz.jiel.exceptions.IOError;
+
+import static org.junit.Assert.*;
+
+public class CopierTest {
+    private Path tmp;
+    private Path src;
+    private Path dst;
+
+    @Before
+    public void setUp() throws IOException {
+        tmp = Files.createTempDirectory("copier");
+        src = Files.createDirectories(tmp.resolve("src"));
+        dst = Files.createDirectories(tmp.resolve("dst"));
+    }
+
+    @After
+    public void tearDown() {
+        Shutil.rmtree(tmp.toFile());
+    }
+
+    @Test
+    public void syncReplacesLinkToFile() throws IOException {
+        Path outside = tmp.resolve("outside.txt");
+        Files.write(outside, bytes("outside"));
+        Files.write(src.resolve("f"), bytes("new"));
+        Files.createSymbolicLink(dst.resolve("f"), Paths.get("../outside.txt"));
+
+        Report report = Shutil.copier().sync(src.toFile(), dst.toFile());
+        assertTrue(report.ok());
+        assertEquals(1, report.deleted());
+        assertArrayEquals(bytes("outside"), Files.readAllBytes(outside));
+        assertFalse(Files.isSymbolicLink(dst.resolve("f")));
+        assertArrayEquals(bytes("new"), Files.readAllBytes(dst.resolve("f")));
+    }
+
+    @Test
+    public void syncReplacesLinkToDirectory() throws IOException {
+        Path outside = Files.createDirectories(tmp.resolve("outside"));
+        Files.createDirectories(src.resolve("d"));
+        Files.write(src.resolve("d/f"), bytes("new"));
+        Files.createSymbolicLink(dst.resolve("d"), outside);
+
+        Report report = Shutil.copier().threads(4).sync(src.toFile(), dst.toFile());
+        assertTrue(report.ok());
+        assertFalse(Files.exists(outside.resolve("f")));
+        assertTrue(Files.isDirectory(dst.resolve("d"), LinkOption.NOFOLLOW_LINKS));
+        assertArrayEquals(bytes("new"), Files.readAllBytes(dst.resolve("d/f")));
+    }
+
+    @Test
+    public void syncReplacesFileByDirectory() throws IOException {
+        Files.createDirectories(src.resolve("d"));
+        Files.write(src.resolve("d/f"), bytes("f"));
+        Files.write(dst.resolve("d"), bytes("file"));
+
+        Report report = Shutil.copier().sync(src.toFile(), dst.toFile());
+        assertTrue(report.ok());
+        assertEquals(1, report.deleted());
+        assertArrayEquals(bytes("f"), Files.readAllBytes(dst.resolve("d/f")));
+    }
+
+    @Test
+    public void syncReplacesDirectoryByFileOnlyWithDelete() throws IOException {
+        Files.write(src.resolve("d"), bytes("file"));
+        Files.createDirectories(dst.resolve("d"));
+        Files.write(dst.resolve("d/old"), bytes("old"));
+
+        Report report = Shutil.copier().sync(src.toFile(), dst.toFile());
+        assertFalse(report.ok());
+        assertTrue(Files.isDirectory(dst.resolve("d")));
+
+        report = Shutil.copier().delete(true).sync(src.toFile(), dst.toFile());
+        assertTrue(report.ok());
+        assertArrayEquals(bytes("file"), Files.readAllBytes(dst.resolve("d")));
+    }
+
+    @Test
+    public void syncSkipsUnchanged() throws IOException {
+        Files.write(src.resolve("f"), bytes("f"));
+        assertEquals(1, Shutil.copier().sync(src.toFile(), dst.toFile()).entries());
+
+        Report report = Shutil.copier().sync(src.toFile(), dst.toFile());
+        assertEquals(0, report.entries());
+        assertEquals(1, report.skipped());
+    }
+
+    @Test
+    public void syncFailsOnPipe() throws Exception {
+        Files.write(src.resolve("f"), bytes("f"));
+        Path pipe = src.resolve("pipe");
+        if (new ProcessBuilder("mkfifo", pipe.toString()).start().waitFor() != 0) {
+            // no pipes on this platform
+            return;
+        }
+
+        Report report = Shutil.copier().threads(2).sync(src.toFile(), dst.toFile());
+        assertEquals(1, report.failures().size());
+        assertTrue(report.failures().containsKey(pipe.toString()));
+        assertArrayEquals(bytes("f"), Files.readAllBytes(dst.resolve("f")));
+    }
+
+    @Test
+    public void durableCopyKeepsPermissions() throws IOException {
+        Path f = src.resolve("f");
+        Files.write(f, bytes("f"));
+        Set<PosixFilePermission> mode = PosixFilePermissions.fromString("rwxr-x---");
+        Files.setPosixFilePermissions(f, mode);
+
+        Shutil.copier().durable(true).copyfile(f.toFile(), dst.resolve("f").toFile());
+        assertEquals(mode, Files.getPosixFilePermissions(dst.resolve("f")));
+        assertArrayEquals(bytes("f"), Files.readAllBytes(dst.resolve("f")));
+        // only the renamed copy is left
+        assertEquals(1, dst.toFile().list().length);
+    }
+
+    @Test
+    public void durableCopyNeedsParent() throws IOException {
+        Files.write(src.resolve("f"), bytes("f"));
+        try {
+            Shutil.copier().durable(true).copyfile(src.resolve("f").toFile(), dst.resolve("d/f").toFile());
+            fail("Expect the missing parent to fail");
+        } catch (IOError e) {
+            // expected
+        }
+        assertFalse(Files.exists(dst.resolve("d")));
+    }
+
+    @Test
+    public void copyfilesToManyDestinations() throws IOException {
+        File f = Files.write(src.resolve("f"), bytes("f")).toFile();
+        File g = Files.write(src.resolve("g"), bytes("g")).toFile();
+        List<Map.Entry<File, File>> manifest = new ArrayList<>();
+        manifest.add(new AbstractMap.SimpleEntry<>(f, dst.resolve("a/f").toFile()));
+        manifest.add(new AbstractMap.SimpleEntry<>(f, dst.resolve("b/f").toFile()));
+        manifest.add(new AbstractMap.SimpleEntry<>(g, dst.resolve("a/g").toFile()));
+
+        Report report = Shutil.copier().threads(4).copyfiles(manifest);
+        assertTrue(report.ok());
+        assertEquals(3, report.entries());
+        assertArrayEquals(bytes("f"), Files.readAllBytes(dst.resolve("a/f")));
+        assertArrayEquals(bytes("f"), Files.readAllBytes(dst.resolve("b/f")));
+        assertArrayEquals(bytes("g"), Files.readAllBytes(dst.resolve("a/g")));
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,55 @@
+package xyz.jiel.tools;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import xyz.jiel.exceptions.IOError;
+
+import static org.junit.Assert.*;
+
+public class ShutilTest {
+    private Path tmp;
+    private Path outside;
+
+    @Before
+    public void setUp() throws IOException {
+        tmp = Files.createTempDirectory("shutil");
+        outside = Files.createDirectories(tmp.resolve("outside"));
+        Files.write(outside.resolve("kept"), "kept".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @After
+    public void tearDown() {
+        Shutil.rmtree(tmp.toFile());
+    }
+
+    @Test
+    public void rmtreeRemovesLinksWithoutFollowing() throws IOException {
+        Path dir = Files.createDirectories(tmp.resolve("dir/sub"));
+        Files.write(dir.resolve("f"), new byte[10]);
+        Files.createSymbolicLink(dir.resolve("link"), outside);
+
+        Report report = Shutil.rmtree(tmp.resolve("dir").toFile(), 4);
+        assertTrue(report.ok());
+        assertFalse(Files.exists(tmp.resolve("dir")));
+        assertTrue(Files.exists(outside.resolve("kept")));
+    }
+
+    @Test
+    public void rmtreeRefusesLinkRoot() throws IOException {
+        Path link = Files.createSymbolicLink(tmp.resolve("link"), outside);
+        try {
+            Shutil.rmtree(link.toFile());
+            fail("Expect a link to be refused");
+        } catch (IOError e) {
+            // expected
+        }
+        assertTrue(Files.isSymbolicLink(link));
+        assertTrue(Files.exists(outside.resolve("kept")));
+    }
+}
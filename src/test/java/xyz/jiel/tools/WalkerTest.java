@@ -0,0 +1,66 @@
+package xyz.jiel.tools;
+
+import java.io.*;
+import java.nio.file.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class WalkerTest {
+    private Path tmp;
+
+    @Before
+    public void setUp() throws IOException {
+        tmp = Files.createTempDirectory("walker");
+        Path dir = tmp;
+        for (int i = 0; i < 20; i++) {
+            dir = Files.createDirectories(dir.resolve("d" + i));
+            Files.write(dir.resolve("f"), new byte[1]);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        Shutil.rmtree(tmp.toFile());
+    }
+
+    @Test
+    public void closeAfterBreak() {
+        int before = openFiles();
+        try (Walker walker = Shutil.walk(tmp.toFile())) {
+            for (Walker.Entry entry : walker) {
+                if (entry.depth() == 15) {
+                    break;
+                }
+            }
+            if (before >= 0) {
+                assertTrue(openFiles() >= before + 15);
+            }
+        }
+        if (before >= 0) {
+            assertEquals(before, openFiles());
+        }
+    }
+
+    @Test
+    public void closedAtEnd() {
+        int before = openFiles();
+        int n = 0;
+        for (Walker.Entry entry : Shutil.walk(tmp.toFile())) {
+            n++;
+        }
+        assertEquals(40, n);
+        if (before >= 0) {
+            assertEquals(before, openFiles());
+        }
+    }
+
+    /** the number of the open file descriptors, or -1 if unknown */
+    private static int openFiles() {
+        String[] fds = new File("/proc/self/fd").list();
+        return fds == null ? -1 : fds.length;
+    }
+}